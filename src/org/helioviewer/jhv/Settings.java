@@ -24,6 +24,17 @@ public class Settings {
             setProperty("timeout.read", "120000");
             setProperty("timeout.connect", "30000");
             setProperty("update.next", "0");
+            setProperty("decode.ahead", "4");
+            setProperty("decode.cache", "2048");
+            setProperty("decode.threads", "0");
+            setProperty("jpip.pipeline", "4");
+            setProperty("jpip.channels", "1");
+            setProperty("jpip.connections", "8");
+            setProperty("jpip.transport", "blocking");
+            setProperty("jpip.prefetch", "Sweep");
+            setProperty("jpip.cache.store", "ehcache");
+            setProperty("jpip.cache.size", "8");
+            setProperty("server.adaptive", "false");
         }
     };
     private static final Properties settings = new Properties(defaults);
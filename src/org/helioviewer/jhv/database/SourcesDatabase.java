@@ -24,6 +24,7 @@ public class SourcesDatabase extends Thread {
     private static Connection connection;
     private static PreparedStatement insert;
     private static PreparedStatement select;
+    private static PreparedStatement translate;
 
     public SourcesDatabase(Runnable r, String name) {
         super(r, name);
@@ -40,6 +41,8 @@ public class SourcesDatabase extends Thread {
             insert.setQueryTimeout(30);
             select = connection.prepareStatement("SELECT sourceId FROM Sources WHERE server=? AND observatory LIKE ? AND dataset LIKE ? LIMIT 1");
             select.setQueryTimeout(30);
+            translate = connection.prepareStatement("SELECT b.sourceId FROM Sources a JOIN Sources b ON a.observatory=b.observatory AND a.dataset=b.dataset WHERE a.server=? AND a.sourceId=? AND b.server=? LIMIT 1");
+            translate.setQueryTimeout(30);
         } catch (SQLException e) {
             Log.error("Could not create database connection", e);
             try {
@@ -145,4 +148,51 @@ public class SourcesDatabase extends Thread {
 
     }
 
+    // sourceId of the same dataset on another server, -1 if that server does not have it
+    public static int translate(@Nonnull String server, int sourceId, @Nonnull String toServer) {
+        FutureTask<Integer> ft = new FutureTask<>(new Translate(server, sourceId, toServer));
+        executor.execute(ft);
+        try {
+            return ft.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+        return -1;
+    }
+
+    private static class Translate implements Callable<Integer> {
+
+        private final String server;
+        private final int sourceId;
+        private final String toServer;
+
+        Translate(@Nonnull String _server, int _sourceId, @Nonnull String _toServer) {
+            server = _server;
+            sourceId = _sourceId;
+            toServer = _toServer;
+        }
+
+        @Override
+        public Integer call() {
+            int res = -1;
+            if (connection == null)
+                return res;
+
+            try {
+                translate.setString(1, server);
+                translate.setInt(2, sourceId);
+                translate.setString(3, toServer);
+
+                try (ResultSet rs = translate.executeQuery()) {
+                    if (rs.next())
+                        res = rs.getInt(1);
+                }
+            } catch (SQLException e) {
+                Log.error("Failed to translate", e);
+            }
+            return res;
+        }
+
+    }
+
 }
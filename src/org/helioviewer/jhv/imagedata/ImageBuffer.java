@@ -3,6 +3,9 @@ package org.helioviewer.jhv.imagedata;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
 
 public class ImageBuffer {
 
@@ -21,11 +24,35 @@ public class ImageBuffer {
     public final Format format;
     public final Buffer buffer;
 
+    private final ByteBuffer pooled; // backing store to return to ImageBufferPool
+    private final AtomicInteger refs = new AtomicInteger(1);
+
     public ImageBuffer(int _width, int _height, Format _format, Buffer _buffer) {
+        this(_width, _height, _format, _buffer, null);
+    }
+
+    public ImageBuffer(int _width, int _height, Format _format, Buffer _buffer, @Nullable ByteBuffer _pooled) {
         width = _width;
         height = _height;
         format = _format;
         buffer = _buffer;
+        pooled = _pooled;
+    }
+
+    // fails if the buffer was already returned to the pool
+    public boolean retain() {
+        int n;
+        do {
+            n = refs.get();
+            if (n == 0)
+                return false;
+        } while (!refs.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() == 0 && pooled != null)
+            ImageBufferPool.release(pooled);
     }
 
     int getPixel(int x, int y) {
@@ -0,0 +1,100 @@
+package org.helioviewer.jhv.imagedata;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helioviewer.jhv.JHVGlobals;
+import org.helioviewer.jhv.base.BufferUtils;
+import org.helioviewer.jhv.log.Log;
+
+// Size-classed pool of direct buffers backing decoded images
+public class ImageBufferPool {
+
+    private static final int MIN_CLASS = 16; // 64kB
+    private static final int NUM_CLASSES = 31 - MIN_CLASS;
+    private static final long MAX_POOLED = 512L * 1024 * 1024;
+    private static final int STATS_PERIOD = 60;
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static final ArrayDeque<ByteBuffer>[] pool = new ArrayDeque[NUM_CLASSES];
+    private static long pooledBytes;
+
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+    private static final AtomicLong reusedBytes = new AtomicLong();
+    private static long lastAllocated;
+    private static long lastReused;
+
+    static {
+        for (int i = 0; i < NUM_CLASSES; i++)
+            pool[i] = new ArrayDeque<>();
+        JHVGlobals.getReaperService().scheduleAtFixedRate(ImageBufferPool::logStats, STATS_PERIOD, STATS_PERIOD, TimeUnit.SECONDS);
+    }
+
+    private static int sizeClass(int len) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(len, 1) - 1);
+        return Math.max(bits, MIN_CLASS) - MIN_CLASS;
+    }
+
+    // native order, limit set to len, contents undefined
+    public static ByteBuffer get(int len) {
+        int idx = sizeClass(len);
+        if (idx >= NUM_CLASSES) { // too large to pool
+            allocatedBytes.addAndGet(len);
+            return BufferUtils.newByteBuffer(len);
+        }
+
+        ByteBuffer buf;
+        synchronized (pool) {
+            buf = pool[idx].poll();
+            if (buf != null)
+                pooledBytes -= buf.capacity();
+        }
+
+        if (buf == null) {
+            buf = BufferUtils.newByteBuffer(1 << (idx + MIN_CLASS));
+            allocatedBytes.addAndGet(buf.capacity());
+        } else
+            reusedBytes.addAndGet(buf.capacity());
+
+        buf.clear();
+        buf.limit(len);
+        return buf;
+    }
+
+    static void release(ByteBuffer buf) {
+        int cap = buf.capacity();
+        int idx = sizeClass(cap);
+        if (idx >= NUM_CLASSES || cap != 1 << (idx + MIN_CLASS))
+            return;
+
+        synchronized (pool) {
+            if (pooledBytes + cap <= MAX_POOLED) {
+                pool[idx].push(buf);
+                pooledBytes += cap;
+            }
+        }
+    }
+
+    public static long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public static long getReusedBytes() {
+        return reusedBytes.get();
+    }
+
+    private static void logStats() {
+        long allocated = allocatedBytes.get();
+        long reused = reusedBytes.get();
+        if (allocated == lastAllocated && reused == lastReused)
+            return;
+
+        double mb = 1024. * 1024. * STATS_PERIOD;
+        Log.debug(String.format("Image buffers: allocated %.1f MB/s, reused %.1f MB/s", (allocated - lastAllocated) / mb, (reused - lastReused) / mb));
+        lastAllocated = allocated;
+        lastReused = reused;
+    }
+
+}
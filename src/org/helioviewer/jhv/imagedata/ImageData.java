@@ -15,6 +15,7 @@ public class ImageData {
     private Region region;
     private MetaData metaData;
     private boolean uploaded;
+    private boolean released;
     private float[] physLUT;
     private String unit = "";
 
@@ -68,6 +69,14 @@ public class ImageData {
         uploaded = _uploaded;
     }
 
+    // to be called once the data is no longer displayed
+    public void release() {
+        if (!released) {
+            released = true;
+            imageBuffer.release();
+        }
+    }
+
     public void setPhysicalLUT(@Nonnull float[] _physLUT) {
         physLUT = _physLUT;
     }
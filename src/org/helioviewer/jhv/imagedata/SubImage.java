@@ -32,6 +32,10 @@ public class SubImage {
         this.height = h;
     }
 
+    public boolean contains(SubImage s) {
+        return s.x >= x && s.y >= y && s.x + s.width <= x + width && s.y + s.height <= y + height;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof SubImage))
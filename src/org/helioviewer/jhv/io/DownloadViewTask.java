@@ -11,6 +11,7 @@ import org.helioviewer.jhv.JHVGlobals;
 import org.helioviewer.jhv.layers.ImageLayer;
 import org.helioviewer.jhv.threads.JHVWorker;
 import org.helioviewer.jhv.view.View;
+import org.helioviewer.jhv.view.j2k.J2KView;
 
 import okio.Buffer;
 import okio.Okio;
@@ -24,9 +25,11 @@ public class DownloadViewTask extends JHVWorker<Void, Void> {
     private final URI uri;
     private final URI downloadURI;
     private final ImageLayer layer;
+    private final View view;
 
-    public DownloadViewTask(ImageLayer _layer, View view) {
+    public DownloadViewTask(ImageLayer _layer, View _view) {
         layer = _layer;
+        view = _view;
         uri = view.getURI();
 
         APIRequest req = view.getAPIRequest();
@@ -74,8 +77,10 @@ public class DownloadViewTask extends JHVWorker<Void, Void> {
             try {
                 if (failed || isCancelled())
                     dstFile.delete();
-                else { // reload from disk
-                    JHVGlobals.getExecutorService().execute(new LoadViewTask(layer, dstFile.toURI()));
+                else { // continue from disk, reload if the view cannot switch in place
+                    URI fileURI = dstFile.toURI();
+                    if (!(view instanceof J2KView && ((J2KView) view).switchToLocal(fileURI)))
+                        JHVGlobals.getExecutorService().execute(new LoadViewTask(layer, fileURI));
                     EventQueue.invokeLater(() -> JHVGlobals.displayNotification(dstFile.toString()));
                 }
             } catch (Exception e) {
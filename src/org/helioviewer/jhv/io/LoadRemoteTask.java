@@ -1,6 +1,7 @@
 package org.helioviewer.jhv.io;
 
 import java.io.IOException;
+import java.util.List;
 
 import javax.annotation.Nullable;
 
@@ -22,11 +23,20 @@ public class LoadRemoteTask extends LoadViewTask {
     @Nullable
     @Override
     protected View backgroundWork() {
-        try {
-            return requestAndOpenRemoteFile(req);
-        } catch (IOException e) {
-            Log.error("An error occured while opening the remote file: ", e);
-            Message.err("An error occured while opening the remote file: ", e.getMessage(), false);
+        List<APIRequest> reqs = ServerSelector.rank(req);
+        for (int i = 0; i < reqs.size() && !isCancelled(); i++) {
+            APIRequest r = reqs.get(i);
+            try {
+                return requestAndOpenRemoteFile(r);
+            } catch (IOException e) {
+                if (i == reqs.size() - 1) {
+                    Log.error("An error occured while opening the remote file: ", e);
+                    Message.err("An error occured while opening the remote file: ", e.getMessage(), false);
+                } else {
+                    Log.warn("Could not open the remote file from " + r.server + ", trying " + reqs.get(i + 1).server, e);
+                    ServerSelector.failed(r.server);
+                }
+            }
         }
         return null;
     }
@@ -81,7 +81,10 @@ class LoadViewTask extends JHVWorker<View, Void> {
     @Nullable
     protected static View requestAndOpenRemoteFile(APIRequest req) throws IOException {
         APIResponse res = APIRequestManager.requestRemoteFile(req);
-        return res == null ? null : loadView(res.getURI(), req, res);
+        if (res == null)
+            return null;
+        ServerSelector.responded(req.server, res.getURI());
+        return loadView(res.getURI(), req, res);
     }
 
 }
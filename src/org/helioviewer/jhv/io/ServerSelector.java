@@ -0,0 +1,223 @@
+package org.helioviewer.jhv.io;
+
+import java.awt.EventQueue;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import kdu_jni.KduException;
+
+import org.helioviewer.jhv.Settings;
+import org.helioviewer.jhv.database.SourcesDatabase;
+import org.helioviewer.jhv.layers.ImageLayer;
+import org.helioviewer.jhv.layers.Layers;
+import org.helioviewer.jhv.log.Log;
+import org.helioviewer.jhv.threads.JHVThread;
+import org.helioviewer.jhv.view.View;
+import org.helioviewer.jhv.view.j2k.io.jpip.JPIPCache;
+import org.helioviewer.jhv.view.j2k.io.jpip.JPIPMetrics;
+import org.helioviewer.jhv.view.j2k.io.jpip.JPIPSocket;
+
+/*
+ * Optional routing of layer loads to the best performing server which has the
+ * dataset. Servers are ranked by the expected time of a reference transfer,
+ * from the round-trip of small probes and the rolling JPIP statistics of the
+ * server. A probe opens a JPIP channel on the last endpoint the server gave
+ * out, else it times a connect to its API. Servers which failed are tried last
+ * for a while; a layer whose reader gave up is loaded again from the next one.
+ */
+public class ServerSelector {
+
+    private static final boolean ENABLED = Boolean.parseBoolean(Settings.getProperty("server.adaptive"));
+
+    private static final long PROBE_AGE = 5 * 60000;
+    private static final int PROBE_TIMEOUT = 5000;
+    private static final long FAILED_PENALTY = 10 * 60000;
+    // until a transfer is measured, servers are compared by round-trip
+    private static final long REFERENCE_BYTES = 1024 * 1024;
+    private static final long DEFAULT_THROUGHPUT = 1024 * 1024;
+    // another server has to be that much better to move a request away from its own
+    private static final double HYSTERESIS = 1.25;
+
+    private static class Probe {
+
+        final long time = System.currentTimeMillis();
+        final long roundTrip; // ms, -1 if unreachable
+
+        Probe(long _roundTrip) {
+            roundTrip = _roundTrip;
+        }
+
+    }
+
+    private static final ConcurrentHashMap<String, Probe> probes = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, URI> endpoints = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Long> failedUntil = new ConcurrentHashMap<>();
+    private static final ExecutorService prober = Executors.newCachedThreadPool(new JHVThread.NamedThreadFactory("Server Probe"));
+
+    // the request and its equivalents on the other servers, best first
+    public static List<APIRequest> rank(APIRequest req) {
+        if (!ENABLED)
+            return Collections.singletonList(req);
+
+        ArrayList<APIRequest> candidates = new ArrayList<>();
+        candidates.add(req);
+        for (String server : DataSources.getServers()) {
+            if (server.equals(req.server))
+                continue;
+            int sourceId = SourcesDatabase.translate(req.server, req.sourceId, server);
+            if (sourceId >= 0)
+                candidates.add(new APIRequest(server, sourceId, req.startTime, req.endTime, req.cadence));
+        }
+        if (candidates.size() == 1)
+            return candidates;
+
+        refresh(candidates);
+        HashMap<String, Double> scores = new HashMap<>();
+        for (APIRequest r : candidates) {
+            double score = score(r.server);
+            scores.put(r.server, r == req ? score / HYSTERESIS : score);
+        }
+        candidates.sort((a, b) -> Double.compare(scores.get(a.server), scores.get(b.server)));
+
+        if (candidates.get(0) != req)
+            Log.info("ServerSelector: " + req.server + " -> " + candidates.get(0).server + " for sourceId " + req.sourceId + ' ' + scores);
+        return candidates;
+    }
+
+    // the server gave out the URI for a request
+    static void responded(String server, @Nullable URI uri) {
+        if (ENABLED && uri != null && "jpip".equals(uri.getScheme()))
+            endpoints.put(server, uri);
+    }
+
+    static void failed(String server) {
+        failedUntil.put(server, System.currentTimeMillis() + FAILED_PENALTY);
+        probes.remove(server);
+    }
+
+    // the reader of the view gave up, load its layer again from the next best server; not on the event thread
+    public static void failover(View view) {
+        APIRequest req = view.getAPIRequest();
+        if (!ENABLED || req == null)
+            return;
+
+        failed(req.server);
+        APIRequest alt = rank(req).get(0);
+        if (alt.server.equals(req.server)) {
+            Log.warn("ServerSelector: no other server for sourceId " + req.sourceId);
+            return;
+        }
+
+        EventQueue.invokeLater(() -> {
+            for (ImageLayer layer : Layers.getImageLayers()) {
+                if (layer.getView() == view) {
+                    Log.warn("ServerSelector: failing over from " + req.server + " to " + alt.server);
+                    layer.load(alt);
+                }
+            }
+        });
+    }
+
+    // probe the servers not measured recently, waiting at most PROBE_TIMEOUT for them
+    private static void refresh(List<APIRequest> candidates) {
+        long now = System.currentTimeMillis();
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        for (APIRequest r : candidates) {
+            Probe p = probes.get(r.server);
+            if (p == null || now - p.time > PROBE_AGE)
+                futures.add(prober.submit(() -> probes.put(r.server, new Probe(probe(r.server)))));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT);
+        for (Future<?> f : futures) {
+            try {
+                f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (Exception ignore) { // late probes are used next time
+            }
+        }
+    }
+
+    private static long probe(String server) {
+        URI jpip = endpoints.get(server);
+        if (jpip != null) {
+            long start = System.nanoTime();
+            JPIPCache cache = null;
+            try {
+                cache = new JPIPCache();
+                JPIPSocket socket = new JPIPSocket(jpip, cache, false); // a deliberately short request
+                long roundTrip = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                socket.close();
+                return roundTrip;
+            } catch (Exception e) { // the file may be gone from the server
+                endpoints.remove(server, jpip);
+                int port = jpip.getPort();
+                return connect(jpip.getHost(), port <= 0 ? 80 : port);
+            } finally {
+                if (cache != null) {
+                    try {
+                        cache.Close();
+                    } catch (KduException ignore) {
+                    }
+                    cache.Native_destroy();
+                }
+            }
+        }
+
+        try {
+            URL api = new URL(DataSources.getServerSetting(server, "API.getDataSources")); // not a valid URI
+            int port = api.getPort();
+            return connect(api.getHost(), port > 0 ? port : api.getDefaultPort());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static long connect(String host, int port) {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), PROBE_TIMEOUT);
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    // expected ms for a reference transfer
+    private static double score(String server) {
+        Long until = failedUntil.get(server);
+        if (until != null && until > System.currentTimeMillis())
+            return Double.MAX_VALUE;
+
+        Probe p = probes.get(server);
+        if (p == null || p.roundTrip < 0)
+            return Double.MAX_VALUE / 2;
+
+        double roundTrip = p.roundTrip;
+        double throughput = DEFAULT_THROUGHPUT;
+        URI jpip = endpoints.get(server);
+        if (jpip != null) {
+            JPIPMetrics.ServerMBean stats = JPIPMetrics.getStats(jpip);
+            long rt = stats.getRoundTripMedian();
+            if (rt >= 0)
+                roundTrip = (roundTrip + rt) / 2;
+            long tp = stats.getThroughputMedian();
+            if (tp > 0)
+                throughput = tp;
+        }
+        return roundTrip + REFERENCE_BYTES * 1000. / throughput;
+    }
+
+}
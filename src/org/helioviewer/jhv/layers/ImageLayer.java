@@ -131,7 +131,11 @@ public class ImageLayer extends AbstractLayer implements ImageDataHandler {
         view.setDataHandler(null);
         view.abolish();
 
+        ImageData oldImageData = imageData, oldPrevImageData = prevImageData, oldBaseImageData = baseImageData;
         imageData = prevImageData = baseImageData = null;
+        releaseImageData(oldImageData);
+        releaseImageData(oldPrevImageData);
+        releaseImageData(oldBaseImageData);
     }
 
     @Override
@@ -226,6 +230,8 @@ public class ImageLayer extends AbstractLayer implements ImageDataHandler {
     private ImageData baseImageData;
 
     private void setImageData(@Nonnull ImageData newImageData) {
+        ImageData oldImageData = imageData, oldPrevImageData = prevImageData, oldBaseImageData = baseImageData;
+
         int frame = newImageData.getMetaData().getFrameNumber();
         if (frame == 0) {
             baseImageData = newImageData;
@@ -238,6 +244,16 @@ public class ImageLayer extends AbstractLayer implements ImageDataHandler {
         }
 
         imageData = newImageData;
+
+        releaseImageData(oldImageData);
+        releaseImageData(oldPrevImageData);
+        releaseImageData(oldBaseImageData);
+    }
+
+    // return buffers of superseded data to the pool
+    private void releaseImageData(@Nullable ImageData data) {
+        if (data != null && data != imageData && data != prevImageData && data != baseImageData)
+            data.release();
     }
 
     @Nullable
@@ -315,6 +331,8 @@ public class ImageLayer extends AbstractLayer implements ImageDataHandler {
 
     public void doneDownloadView() {
         optionsPanel.getRunningDifferencePanel().done();
+        optionsPanel.getRunningDifferencePanel().downloadVisible(!isLocal()); // the view may have switched to the file
+        JHVFrame.getLayersPanel().refresh();
     }
 
     public void progressDownloadView(int percent) {
@@ -33,7 +33,7 @@ public class ImageLayers {
             int i;
             if ((i = layer.isVisibleIdx()) != -1 && vp[i] != null) {
                 double pixFactor = CameraHelper.getPixelFactor(camera, vp[i]);
-                layer.getView().decode(viewpoint, pixFactor, factor);
+                layer.getView().decode(viewpoint, vp[i], pixFactor, factor);
             }
         }
     }
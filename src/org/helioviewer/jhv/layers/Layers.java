@@ -127,6 +127,8 @@ public class Layers extends AbstractTableModel implements Reorderable {
         if (layer == activeLayer) {
             int size = layers.imageLayers.size();
             setActiveImageLayer(size == 0 ? null : layers.imageLayers.get(size - 1));
+        } else if (layer instanceof ImageLayer) {
+            Movie.layersChanged();
         }
 
         if (row >= 0)
@@ -2,6 +2,7 @@ package org.helioviewer.jhv.layers;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.HashMap;
 import java.util.HashSet;
 
 import javax.swing.Timer;
@@ -28,6 +29,7 @@ public class Movie implements ActionListener {
             MoviePanel.unsetMovie();
         } else
             MoviePanel.setMovie(view);
+        layersChanged();
         setTime(lastTimestamp); // ensure master layer time is used
     }
 
@@ -64,11 +66,32 @@ public class Movie implements ActionListener {
     static void timespanChanged() {
         movieStart = getMovieStart();
         movieEnd = getMovieEnd();
+        layersChanged();
         for (TimespanListener ll : timespanListeners) {
             ll.timespanChanged(movieStart, movieEnd);
         }
     }
 
+    // for each layer, its frame at each frame of the master layer
+    private static final HashMap<View, int[]> syncTable = new HashMap<>();
+
+    static void layersChanged() {
+        syncTable.clear();
+        ImageLayer master = Layers.getActiveImageLayer();
+        if (master == null)
+            return;
+
+        View masterView = master.getView();
+        int numFrames = masterView.getMaximumFrameNumber() + 1;
+        for (ImageLayer layer : Layers.getImageLayers()) {
+            View view = layer.getView();
+            int[] frames = new int[numFrames];
+            for (int i = 0; i < numFrames; i++)
+                frames[i] = view.getFrameNumber(masterView.getFrameTime(i));
+            syncTable.put(view, frames);
+        }
+    }
+
     private static int deltaT;
     private static final Timer frameTimer = new Timer(1000 / 20, instance);
 
@@ -154,8 +177,16 @@ public class Movie implements ActionListener {
         Camera camera = Display.getCamera();
         camera.timeChanged(lastTimestamp);
 
+        View masterView = Layers.getActiveImageLayer().getView(); // should be not null
+        int masterFrame = masterView.getFrameNumber(dateTime);
+        boolean onMaster = masterView.getFrameTime(masterFrame).milli == dateTime.milli;
         for (ImageLayer layer : Layers.getImageLayers()) {
-            layer.getView().setFrame(dateTime);
+            View view = layer.getView();
+            int[] frames = onMaster ? syncTable.get(view) : null;
+            if (frames != null && masterFrame < frames.length)
+                view.setFrameNumber(frames[masterFrame]);
+            else
+                view.setFrame(dateTime);
         }
         Display.render(1);
 
@@ -167,9 +198,8 @@ public class Movie implements ActionListener {
             listener.timeChanged(lastTimestamp.milli);
         }
 
-        View view = Layers.getActiveImageLayer().getView(); // should be not null
-        int activeFrame = view.getCurrentFrameNumber();
-        boolean last = activeFrame == view.getMaximumFrameNumber();
+        int activeFrame = masterView.getCurrentFrameNumber();
+        boolean last = activeFrame == masterView.getMaximumFrameNumber();
         for (FrameListener listener : frameListeners) {
             listener.frameChanged(activeFrame, last);
         }
@@ -224,6 +254,10 @@ public class Movie implements ActionListener {
         animationMode = mode;
     }
 
+    public static AnimationMode getAnimationMode() {
+        return animationMode;
+    }
+
     private static boolean recording;
     private static boolean notDone;
 
@@ -49,7 +49,7 @@ public class HelioviewerMetaData extends BaseMetaData {
         observatory = observatory.trim().intern();
         fullName = fullName.trim().intern();
 
-        retrievePosition(m, retrieveDateTime(m));
+        retrievePosition(m, retrieveDateTime(m, instrument));
         centerRotation = retrieveCenterRotation(m);
         retrievePixelParameters(m);
 
@@ -188,7 +188,7 @@ public class HelioviewerMetaData extends BaseMetaData {
         }
     }
 
-    private JHVDate retrieveDateTime(MetaDataContainer m) {
+    static JHVDate retrieveDateTime(MetaDataContainer m, String instrument) {
         String observedDate;
         // DATE-OBS unusable for MDI and early EIT
         if (instrument.equals("MDI") || instrument.equals("EIT")) {
@@ -1,47 +1,89 @@
 package org.helioviewer.jhv.metadata;
 
+import java.io.StringReader;
+import java.util.HashMap;
 import java.util.Optional;
 
 import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
 
-import org.helioviewer.jhv.base.XMLUtils;
-
-import org.w3c.dom.CharacterData;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
+import org.helioviewer.jhv.time.JHVDate;
 
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Longs;
 
+// Values of the elements within the meta tag, read in one streaming pass; the first occurrence of a key wins
 public class XMLMetaDataContainer implements MetaDataContainer {
 
-    private final Element meta;
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    static {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final HashMap<String, String> values = new HashMap<>();
 
     public XMLMetaDataContainer(String xml) throws Exception {
-        meta = (Element) XMLUtils.parse(xml).getElementsByTagName("meta").item(0);
-        if (meta == null)
+        XMLStreamReader reader = factory.createXMLStreamReader(new StringReader(xml));
+        try {
+            int depth = 0; // within meta
+            String key = null; // element whose first text is awaited
+            StringBuilder text = new StringBuilder();
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        if (depth > 0) {
+                            putText(key, text);
+                            key = reader.getLocalName();
+                            depth++;
+                        } else if ("meta".equals(reader.getLocalName()))
+                            depth = 1;
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth > 0) {
+                            putText(key, text);
+                            key = null;
+                            if (--depth == 0)
+                                return;
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (key != null)
+                            text.append(reader.getText());
+                        break;
+                    default:
+                        break;
+                }
+            }
             throw new Exception("XML metadata without meta tag");
+        } finally {
+            reader.close();
+        }
     }
 
-    @Nullable
-    private String getValueFromXML(String key) {
-        Element line = (Element) meta.getElementsByTagName(key).item(0);
-        if (line == null)
-            return null;
-
-        Node child = line.getFirstChild();
-        if (child instanceof CharacterData)
-            return ((CharacterData) child).getData();
-        return null;
+    private void putText(@Nullable String key, StringBuilder text) {
+        if (key != null && text.length() > 0)
+            values.putIfAbsent(key, text.toString());
+        text.setLength(0);
     }
 
     public HelioviewerMetaData getHVMetaData(int i, boolean normalizeResponse) {
         return new HelioviewerMetaData(this, i, normalizeResponse);
     }
 
+    // observation time as HelioviewerMetaData would set it, without the rest of the metadata
+    public JHVDate getDateObs() {
+        return HelioviewerMetaData.retrieveDateTime(this, getString("INSTRUME").orElse("").split("_", 2)[0].trim());
+    }
+
     @Override
     public Optional<String> getString(String key) {
-        return Optional.ofNullable(getValueFromXML(key));
+        return Optional.ofNullable(values.get(key));
     }
 
     @Override
@@ -32,6 +32,8 @@ class RadioJ2KData implements ImageDataHandler {
 
     private BufferedImage bufferedImage;
     private Region region;
+    // backs bufferedImage, released when superseded
+    private ImageData imageData;
 
     RadioJ2KData(J2KViewCallisto _view, long start) throws Exception {
         try {
@@ -61,20 +63,32 @@ class RadioJ2KData implements ImageDataHandler {
             view = null;
         }
         bufferedImage = null;
+        releaseImageData();
+    }
+
+    // return the buffer to the pool
+    private void releaseImageData() {
+        if (imageData != null) {
+            imageData.release();
+            imageData = null;
+        }
     }
 
     @Override
-    public void handleData(ImageData imageData) {
-        ImageBuffer imageBuffer = imageData.getImageBuffer();
+    public void handleData(ImageData newImageData) {
+        ImageBuffer imageBuffer = newImageData.getImageBuffer();
         int w = imageBuffer.width;
         int h = imageBuffer.height;
         if (w < 1 || h < 1) {
             Log.error("width: " + w + " height: " + h);
+            newImageData.release();
             return;
         }
 
-        region = imageData.getRegion();
+        region = newImageData.getRegion();
         bufferedImage = NIOImageFactory.createIndexed(imageBuffer.buffer, w, h, RadioData.getColorModel());
+        releaseImageData();
+        imageData = newImageData;
         DrawController.drawRequest();
     }
 
@@ -83,7 +97,7 @@ class RadioJ2KData implements ImageDataHandler {
             Rectangle roi = getROI(xAxis);
             if (decodingNeeded && roi.width > 0 && roi.height > 0) {
                 view.setRegion(roi);
-                view.decode(null, 1, last_resolution);
+                view.decode(null, null, 1, last_resolution);
             }
         }
     }
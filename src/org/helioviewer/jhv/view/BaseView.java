@@ -6,6 +6,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
 
 import org.helioviewer.jhv.base.lut.LUT;
+import org.helioviewer.jhv.display.Viewport;
 import org.helioviewer.jhv.imagedata.ImageData;
 import org.helioviewer.jhv.imagedata.ImageDataHandler;
 import org.helioviewer.jhv.io.APIRequest;
@@ -19,9 +20,9 @@ public class BaseView implements View {
 
     private static final AtomicBoolean fullCache = new AtomicBoolean(true);
 
-    private final boolean isLocal;
+    private volatile boolean isLocal;
     protected final APIRequest request;
-    protected final URI uri;
+    protected volatile URI uri;
 
     protected ImageData imageData;
     protected LUT builtinLUT;
@@ -34,6 +35,12 @@ public class BaseView implements View {
         isLocal = uri != null && "file".equals(uri.getScheme());
     }
 
+    // the image moved, e.g., downloaded to a local file
+    protected void setURI(URI _uri) {
+        uri = _uri;
+        isLocal = uri != null && "file".equals(uri.getScheme());
+    }
+
     @Override
     public URI getURI() {
         return uri;
@@ -67,7 +74,7 @@ public class BaseView implements View {
     }
 
     @Override
-    public void decode(Position viewpoint, double pixFactor, double factor) {
+    public void decode(Position viewpoint, @Nullable Viewport vp, double pixFactor, double factor) {
         if (imageData != null) {
             imageData.setViewpoint(viewpoint);
             if (dataHandler != null) {
@@ -105,6 +112,15 @@ public class BaseView implements View {
     public void setFrame(JHVDate time) {
     }
 
+    @Override
+    public void setFrameNumber(int frame) {
+    }
+
+    @Override
+    public int getFrameNumber(JHVDate time) {
+        return 0;
+    }
+
     @Nullable
     @Override
     public JHVDate getNextTime(AnimationMode mode, int deltaT) {
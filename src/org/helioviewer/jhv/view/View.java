@@ -6,6 +6,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
 
 import org.helioviewer.jhv.base.lut.LUT;
+import org.helioviewer.jhv.display.Viewport;
 import org.helioviewer.jhv.imagedata.ImageDataHandler;
 import org.helioviewer.jhv.io.APIRequest;
 import org.helioviewer.jhv.metadata.MetaData;
@@ -22,7 +23,7 @@ public interface View {
 
     void abolish();
 
-    void decode(Position viewpoint, double pixFactor, double factor);
+    void decode(Position viewpoint, @Nullable Viewport vp, double pixFactor, double factor);
 
     URI getURI();
 
@@ -59,6 +60,10 @@ public interface View {
 
     void setFrame(JHVDate time);
 
+    void setFrameNumber(int frame);
+
+    int getFrameNumber(JHVDate time);
+
     JHVDate getFrameTime(JHVDate time);
 
     MetaData getMetaData(JHVDate time);
@@ -14,6 +14,7 @@ import nom.tam.util.Cursor;
 
 import org.helioviewer.jhv.io.NetClient;
 import org.helioviewer.jhv.imagedata.ImageBuffer;
+import org.helioviewer.jhv.imagedata.ImageBufferPool;
 import org.helioviewer.jhv.imagedata.ImageData;
 import org.helioviewer.jhv.math.MathUtils;
 import org.helioviewer.jhv.log.Log;
@@ -127,11 +128,13 @@ class FITSImage {
 
         if (bpp == BasicHDU.BITPIX_BYTE) {
             byte[][] inData = (byte[][]) pixelData;
-            byte[] outData = new byte[width * height];
+            ByteBuffer outData = ImageBufferPool.get(width * height);
             for (int j = 0; j < height; j++) {
-                System.arraycopy(inData[j], 0, outData, width * (height - 1 - j), width);
+                outData.position(width * (height - 1 - j));
+                outData.put(inData[j], 0, width);
             }
-            imageData = new ImageData(new ImageBuffer(width, height, ImageBuffer.Format.Gray8, ByteBuffer.wrap(outData)));
+            outData.rewind();
+            imageData = new ImageData(new ImageBuffer(width, height, ImageBuffer.Format.Gray8, outData, outData));
             return;
         }
 
@@ -156,7 +159,8 @@ class FITSImage {
         double range = minmax[1] - minmax[0];
         // System.out.println(">>> " + minmax[0] + ' ' + minmax[1]);
 
-        short[] outData = new short[width * height];
+        ByteBuffer outBuffer = ImageBufferPool.get(2 * width * height);
+        ShortBuffer outData = outBuffer.asShortBuffer();
         float[] lut = new float[65536];
         switch (bpp) {
             case BasicHDU.BITPIX_SHORT:
@@ -170,7 +174,7 @@ class FITSImage {
                         float v = getValue(bpp, lineData, i, blank, bzero, bscale);
                         int p = (int) MathUtils.clip(scale * Math.pow(v - minmax[0], GAMMA) + .5, 0, 65535);
                         lut[p] = v;
-                        outData[width * (height - 1 - j) + i] = v == ImageData.BAD_PIXEL ? 0 : (short) p;
+                        outData.put(width * (height - 1 - j) + i, v == ImageData.BAD_PIXEL ? 0 : (short) p);
                     }
                 }
                 break;
@@ -183,13 +187,13 @@ class FITSImage {
                         float v = getValue(bpp, lineData, i, blank, bzero, bscale);
                         int p = (int) MathUtils.clip(scale * Math.log1p(v - minmax[0]) + .5, 0, 65535);
                         lut[p] = v;
-                        outData[width * (height - 1 - j) + i] = v == ImageData.BAD_PIXEL ? 0 : (short) p;
+                        outData.put(width * (height - 1 - j) + i, v == ImageData.BAD_PIXEL ? 0 : (short) p);
                     }
                 }
                 break;
             }
         }
-        imageData = new ImageData(new ImageBuffer(width, height, ImageBuffer.Format.Gray16, ShortBuffer.wrap(outData)));
+        imageData = new ImageData(new ImageBuffer(width, height, ImageBuffer.Format.Gray16, outData, outBuffer));
         imageData.setPhysicalLUT(lut);
     }
 
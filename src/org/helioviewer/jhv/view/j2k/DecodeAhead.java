@@ -0,0 +1,90 @@
+package org.helioviewer.jhv.view.j2k;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.helioviewer.jhv.imagedata.ImageBuffer;
+import org.helioviewer.jhv.view.j2k.image.DecodeParams;
+
+// Bounded ring of frames decoded ahead of the movie position
+class DecodeAhead {
+
+    private final int capacity;
+    private final LinkedHashMap<DecodeParams, ImageBuffer> ready;
+    private final HashSet<DecodeParams> pending = new HashSet<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private int lastFrame = -1;
+
+    DecodeAhead(int _capacity) {
+        capacity = _capacity;
+        ready = new LinkedHashMap<DecodeParams, ImageBuffer>(2 * capacity) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DecodeParams, ImageBuffer> eldest) {
+                if (size() > capacity) {
+                    eldest.getValue().release();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    // the returned buffer is retained for the caller
+    @Nullable
+    synchronized ImageBuffer get(DecodeParams params) {
+        ImageBuffer imageBuffer = ready.get(params);
+        if (imageBuffer != null && !imageBuffer.retain())
+            imageBuffer = null;
+        if (params.frame != lastFrame) { // count once per frame change
+            lastFrame = params.frame;
+            if (imageBuffer == null)
+                misses.incrementAndGet();
+            else
+                hits.incrementAndGet();
+        }
+        return imageBuffer;
+    }
+
+    // true if the caller should decode these params
+    synchronized boolean claim(DecodeParams params) {
+        if (ready.containsKey(params) || pending.contains(params) || pending.size() >= capacity)
+            return false;
+        pending.add(params);
+        return true;
+    }
+
+    synchronized void put(DecodeParams params, @Nullable ImageBuffer imageBuffer) {
+        if (imageBuffer == null)
+            pending.remove(params);
+        else if (pending.remove(params))
+            ready.put(params, imageBuffer);
+        else // stale
+            imageBuffer.release();
+    }
+
+    synchronized void clear() {
+        ready.values().forEach(ImageBuffer::release);
+        ready.clear();
+        pending.clear();
+        lastFrame = -1;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.helioviewer.jhv.view.j2k;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.helioviewer.jhv.Settings;
+import org.helioviewer.jhv.imagedata.ImageBuffer;
+import org.helioviewer.jhv.log.Log;
+import org.helioviewer.jhv.view.j2k.image.DecodeParams;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+// Process-wide cache of decoded frames, bounded by a memory budget and partitioned per view
+class DecodeCache {
+
+    // decoded frames live in direct buffers: decode.cache, capped at half of the direct memory limit
+    private static final long budget = Math.min(Long.parseLong(Settings.getProperty("decode.cache")) * 1024 * 1024, getMaxDirectMemory() / 2);
+    private static final Cache<Key, ImageBuffer> cache = CacheBuilder.newBuilder()
+            .maximumWeight(budget)
+            .weigher((Key k, ImageBuffer v) -> v.width * v.height * v.format.bytes)
+            .removalListener((RemovalNotification<Key, ImageBuffer> n) -> {
+                if (n.getCause() != RemovalCause.REPLACED)
+                    unindex(n.getKey());
+                n.getValue().release();
+            })
+            .recordStats()
+            .build();
+    private static final AtomicInteger partitions = new AtomicInteger();
+    // cached keys per partition and frame, for getCovering
+    private static final ConcurrentHashMap<Long, Set<Key>> index = new ConcurrentHashMap<>();
+
+    private static class Key {
+
+        final int partition;
+        final DecodeParams params;
+
+        Key(int _partition, DecodeParams _params) {
+            partition = _partition;
+            params = _params;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return partition == k.partition && params.equals(k.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * partition + params.hashCode();
+        }
+
+    }
+
+    // -XX:MaxDirectMemorySize, which defaults to the maximum heap size
+    private static long getMaxDirectMemory() {
+        try {
+            HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            long max = Long.parseLong(bean.getVMOption("MaxDirectMemorySize").getValue());
+            if (max > 0)
+                return max;
+        } catch (Exception ignore) {
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    static int newPartition() {
+        return partitions.incrementAndGet();
+    }
+
+    @Nullable
+    static ImageBuffer get(int partition, DecodeParams params) {
+        return cache.getIfPresent(new Key(partition, params));
+    }
+
+    // params of a cached decode of the same frame whose region contains that of params
+    @Nullable
+    static DecodeParams getCovering(int partition, DecodeParams params) {
+        Set<Key> keys = index.get(indexKey(partition, params.frame));
+        if (keys == null)
+            return null;
+        for (Key k : keys) {
+            DecodeParams p = k.params;
+            if (p.factor == params.factor && p.resolution.equals(params.resolution) && p.subImage.contains(params.subImage))
+                return p;
+        }
+        return null;
+    }
+
+    static void put(int partition, DecodeParams params, ImageBuffer imageBuffer) {
+        Key key = new Key(partition, params);
+        index.compute(indexKey(partition, params.frame), (i, keys) -> {
+            if (keys == null)
+                keys = ConcurrentHashMap.newKeySet();
+            keys.add(key);
+            return keys;
+        });
+        cache.put(key, imageBuffer);
+    }
+
+    private static long indexKey(int partition, int frame) {
+        return (long) partition << 32 | (frame & 0xFFFFFFFFL);
+    }
+
+    private static void unindex(Key key) {
+        index.computeIfPresent(indexKey(key.partition, key.params.frame), (i, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    static void invalidate(int partition) {
+        cache.asMap().keySet().removeIf(k -> k.partition == partition);
+        CacheStats stats = getStats();
+        Log.debug("Decode cache: " + cache.size() + " frames, hit rate " + String.format("%.2f", stats.hitRate()) + ", evictions " + stats.evictionCount());
+    }
+
+    static CacheStats getStats() {
+        return cache.stats();
+    }
+
+}
@@ -1,34 +1,59 @@
 package org.helioviewer.jhv.view.j2k;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-
-import org.helioviewer.jhv.threads.JHVThread;
 import org.helioviewer.jhv.view.j2k.image.DecodeParams;
 
+// Decode requests of a view to the shared DecodePool
 class DecodeExecutor {
 
-    private final ArrayBlockingQueue<Runnable> blockingQueue = new ArrayBlockingQueue<>(1);
-    // no need to intercept exceptions
-    private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 10000L, TimeUnit.MILLISECONDS, blockingQueue,
-            new JHVThread.NamedThreadFactory("Decoder"),
-            new ThreadPoolExecutor.DiscardPolicy());
+    // one request for the image on screen at a time, in order; only the latest waiting one matters
+    private boolean running;
+    private J2KDecoder next;
 
-    void decode(J2KView view, DecodeParams decodeParams) {
-        blockingQueue.poll();
-        executor.execute(new J2KDecoder(view, decodeParams, false));
+    // serial orders the results of the view, older ones are dropped
+    synchronized void decode(J2KView view, DecodeParams decodeParams, long serial) {
+        if (view.isAbolished())
+            return;
+        J2KDecoder decoder = new J2KDecoder(view, decodeParams, false, serial);
+        if (running)
+            next = decoder;
+        else {
+            running = true;
+            submit(view, decoder);
+        }
     }
 
-    void abolish() {
-        try {
-            blockingQueue.poll();
-            executor.execute(new J2KDecoder(null, null, true));
-            executor.shutdown();
-            while (!executor.awaitTermination(1000L, TimeUnit.MILLISECONDS)) ;
-        } catch (Exception ignore) {
+    private void submit(J2KView view, J2KDecoder decoder) {
+        DecodePool.submit(view, () -> {
+            try {
+                decoder.run();
+            } finally {
+                done(view);
+            }
+        }, false);
+    }
+
+    private synchronized void done(J2KView view) {
+        if (next == null || view.isAbolished()) {
+            next = null;
+            running = false;
+        } else {
+            submit(view, next);
+            next = null;
         }
     }
 
+    void decodeAhead(J2KView view, DecodeParams decodeParams) {
+        if (view.isAbolished())
+            return;
+        DecodePool.submit(view, new J2KDecoder(view, decodeParams, true, 0), true);
+    }
+
+    void abolish(J2KView view) {
+        DecodePool.abolish(view);
+    }
+
+    void reset(J2KView view) {
+        DecodePool.destroyCompositors(view);
+    }
+
 }
@@ -0,0 +1,137 @@
+package org.helioviewer.jhv.view.j2k;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helioviewer.jhv.Settings;
+import org.helioviewer.jhv.layers.ImageLayer;
+import org.helioviewer.jhv.layers.Layers;
+
+/*
+ * Decoder threads shared by all views. Each worker owns one Kakadu thread
+ * environment, sized such that all of them together use decode.threads
+ * processing threads. Requests of the active layer go first, then requests
+ * for the image on screen before decode-ahead.
+ */
+class DecodePool {
+
+    private static final int MAX_WORKERS = 4;
+    private static final int PARALLELISM = getParallelism();
+    private static final int NUM_WORKERS = Math.max(2, Math.min(MAX_WORKERS, PARALLELISM / 4));
+    // threads of each Kakadu thread environment, the worker included
+    static final int ENV_THREADS = Math.max(1, PARALLELISM / NUM_WORKERS);
+
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+    private static final Worker[] workers = new Worker[NUM_WORKERS];
+
+    static {
+        for (int i = 0; i < NUM_WORKERS; i++) {
+            workers[i] = new Worker("Decoder " + i);
+            workers[i].start();
+        }
+    }
+
+    private static int getParallelism() {
+        int threads = 0;
+        try {
+            threads = Integer.parseInt(Settings.getProperty("decode.threads"));
+        } catch (Exception ignore) {
+        }
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static class Task implements Comparable<Task> {
+
+        private final J2KView view;
+        private final Runnable runnable;
+        private final int priority;
+        private final long seq = sequence.getAndIncrement();
+
+        private Task(J2KView _view, Runnable _runnable, int _priority) {
+            view = _view;
+            runnable = _runnable;
+            priority = _priority;
+        }
+
+        @Override
+        public int compareTo(Task t) {
+            return priority != t.priority ? Integer.compare(priority, t.priority) : Long.compare(seq, t.seq);
+        }
+
+    }
+
+    private static class Worker extends Thread {
+
+        private final ConcurrentLinkedQueue<Runnable> control = new ConcurrentLinkedQueue<>();
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Runnable c;
+                    while ((c = control.poll()) != null)
+                        c.run();
+
+                    Task task = queue.poll(1, TimeUnit.SECONDS);
+                    if (task != null && task.runnable != null)
+                        task.runnable.run();
+                } catch (InterruptedException ignore) {
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+    }
+
+    private static boolean isActive(J2KView view) {
+        ImageLayer layer = Layers.getActiveImageLayer();
+        return layer != null && layer.getView() == view;
+    }
+
+    static void submit(J2KView view, Runnable decoder, boolean ahead) {
+        int priority = (ahead ? 2 : 0) + (isActive(view) ? 0 : 1);
+        queue.add(new Task(view, decoder, priority));
+    }
+
+    // drop the queued requests of the view and destroy its Kakadu machinery on every worker;
+    // the view is already marked abolished, such that tasks queued later do nothing
+    static void abolish(J2KView view) {
+        queue.removeIf(t -> t.view == view);
+        destroyCompositors(view);
+    }
+
+    // destroy the compositors of the view on every worker, the next decodes create them from its current source
+    static void destroyCompositors(J2KView view) {
+        CountDownLatch latch = new CountDownLatch(NUM_WORKERS);
+        for (Worker worker : workers) {
+            worker.control.add(() -> {
+                J2KDecoder.destroyCompositor(view);
+                latch.countDown();
+            });
+            queue.add(new Task(null, null, -1)); // wake up
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+}
@@ -2,6 +2,7 @@ package org.helioviewer.jhv.view.j2k;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.HashMap;
 
 import javax.annotation.Nullable;
 
@@ -17,14 +18,12 @@ import kdu_jni.Kdu_region_compositor;
 import kdu_jni.Kdu_thread_env;
 
 import org.helioviewer.jhv.imagedata.ImageBuffer;
+import org.helioviewer.jhv.imagedata.ImageBufferPool;
 import org.helioviewer.jhv.imagedata.SubImage;
 import org.helioviewer.jhv.view.j2k.image.DecodeParams;
 
 import org.lwjgl.system.MemoryUtil;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-
 class J2KDecoder implements Runnable {
 
     // Maximum of samples to process per rendering iteration
@@ -32,24 +31,29 @@ class J2KDecoder implements Runnable {
     // The amount of cache to allocate to each codestream
     private static final int CODESTREAM_CACHE_THRESHOLD = 1024 * 1024;
     private static final int[] firstComponent = {0};
+    // the first byte in memory of a native order int
+    private static final int FIRST_BYTE_SHIFT = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 24;
 
-    private static final ThreadLocal<Cache<DecodeParams, ImageBuffer>> decodeCache = ThreadLocal.withInitial(() -> CacheBuilder.newBuilder().softValues().build());
     private static final ThreadLocal<Kdu_thread_env> localThread = ThreadLocal.withInitial(J2KDecoder::createThreadEnv);
-    private static final ThreadLocal<Kdu_region_compositor> localCompositor = new ThreadLocal<>();
+    // decoder threads are shared, one compositor per view on each
+    private static final ThreadLocal<HashMap<J2KView, Kdu_region_compositor>> localCompositor = ThreadLocal.withInitial(HashMap::new);
 
     private final J2KView view;
     private final DecodeParams decodeParams;
-    private final boolean abolish;
+    private final boolean ahead;
+    private final long serial;
 
-    J2KDecoder(J2KView _view, DecodeParams _decodeParams, boolean _abolish) {
+    J2KDecoder(J2KView _view, DecodeParams _decodeParams, boolean _ahead, long _serial) {
         view = _view;
         decodeParams = _decodeParams;
-        abolish = _abolish;
+        ahead = _ahead;
+        serial = _serial;
     }
 
     private ImageBuffer decodeLayer(DecodeParams params) throws KduException {
-        ImageBuffer imageBuffer = decodeCache.get().getIfPresent(decodeParams);
-        if (imageBuffer != null)
+        int partition = view.getDecodePartition();
+        ImageBuffer imageBuffer = DecodeCache.get(partition, params);
+        if (imageBuffer != null && imageBuffer.retain())
             return imageBuffer;
 
         SubImage subImage = params.subImage;
@@ -85,7 +89,11 @@ class J2KDecoder implements Runnable {
         long addr = compositorBuf.Get_buf(srcStride, false);
 
         ImageBuffer.Format format = numComponents < 3 ? ImageBuffer.Format.Gray8 : ImageBuffer.Format.ARGB32;
-        byte[] byteBuffer = new byte[actualWidth * actualHeight * format.bytes];
+        ByteBuffer byteBuffer = ImageBufferPool.get(actualWidth * actualHeight * format.bytes);
+        long dstAddr = MemoryUtil.memAddress(byteBuffer);
+
+        int[] samples = numComponents < 3 ? new int[actualWidth] : null;
+        byte[] gray = numComponents < 3 ? new byte[actualWidth] : null;
 
         Kdu_dims newRegion = new Kdu_dims();
         while (compositor.Process(MAX_RENDER_SAMPLES, newRegion)) {
@@ -102,59 +110,59 @@ class J2KDecoder implements Runnable {
             int dstIdx = newX + newY * actualWidth;
             int srcIdx = 0;
 
-            if (numComponents < 3) {
+            if (numComponents < 3) { // rows in bulk, gathering the first byte of each 32-bit compositor sample in between
                 for (int row = 0; row < newHeight; row++, dstIdx += actualWidth, srcIdx += srcStride[0]) {
+                    MemoryUtil.memIntBuffer(addr + 4L * srcIdx, newWidth).get(samples, 0, newWidth);
                     for (int col = 0; col < newWidth; ++col) {
-                        byteBuffer[dstIdx + col] = MemoryUtil.memGetByte(addr + 4 * (srcIdx + col));
+                        gray[col] = (byte) (samples[col] >>> FIRST_BYTE_SHIFT);
                     }
+                    MemoryUtil.memByteBuffer(dstAddr + dstIdx, newWidth).put(gray, 0, newWidth);
                 }
-            } else {
+            } else { // rows are contiguous in both buffers
                 for (int row = 0; row < newHeight; row++, dstIdx += actualWidth, srcIdx += srcStride[0]) {
-                    for (int col = 0; col < newWidth; ++col) {
-                        for (int idx = 0; idx < 4; ++idx)
-                            byteBuffer[4 * (dstIdx + col) + idx] = MemoryUtil.memGetByte(addr + 4 * (srcIdx + col) + idx);
-                    }
+                    MemoryUtil.memCopy(addr + 4L * srcIdx, dstAddr + 4L * dstIdx, 4L * newWidth);
                 }
             }
         }
         compositor.Remove_ilayer(ilayer, true);
 
-        imageBuffer = new ImageBuffer(actualWidth, actualHeight, format, ByteBuffer.wrap(byteBuffer).order(ByteOrder.nativeOrder()));
-        if (decodeParams.complete) {
-            decodeCache.get().put(decodeParams, imageBuffer);
+        imageBuffer = new ImageBuffer(actualWidth, actualHeight, format, byteBuffer, byteBuffer);
+        if (params.complete && imageBuffer.retain()) { // one reference for the cache
+            DecodeCache.put(partition, params, imageBuffer);
         }
         return imageBuffer;
     }
 
     @Override
     public void run() {
-        if (abolish) {
-            abolish();
+        // the abolish of the view waits on each worker for the task running there, a later one must not touch its source
+        if (view.isAbolished())
             return;
-        }
-
         try {
             ImageBuffer data = decodeLayer(decodeParams);
-            view.setDataFromDecoder(decodeParams, data);
+            if (ahead)
+                view.setDataFromDecodeAhead(decodeParams, data);
+            else
+                view.setDataFromDecoder(decodeParams, data, serial);
         } catch (Exception e) { // reboot the compositor
-            Kdu_region_compositor krc = localCompositor.get();
-            if (krc != null)
-                destroyCompositor(krc);
-            localCompositor.set(null);
-            localThread.remove();
+            if (ahead)
+                view.setDataFromDecodeAhead(decodeParams, null);
+            destroyCompositor(view);
             e.printStackTrace();
         }
     }
 
     private Kdu_region_compositor getCompositor() throws KduException {
-        Kdu_region_compositor krc = localCompositor.get();
+        HashMap<J2KView, Kdu_region_compositor> compositors = localCompositor.get();
+        Kdu_region_compositor krc = compositors.get(view);
         if (krc != null)
             return krc;
+        if (view.isAbolished()) // its source may be destroyed, and the compositor would never be
+            throw new KduException("View abolished");
 
-        Thread.currentThread().setName("Decoder " + view.getName());
         krc = createCompositor(view.getSource().getJpxSource());
         krc.Set_thread_env(localThread.get(), null);
-        localCompositor.set(krc);
+        compositors.put(view, krc);
         return krc;
     }
 
@@ -163,8 +171,7 @@ class J2KDecoder implements Runnable {
         try {
             Kdu_thread_env kte = new Kdu_thread_env();
             kte.Create();
-            int numThreads = Kdu_global.Kdu_get_num_processors();
-            for (int i = 1; i < numThreads; i++)
+            for (int i = 1; i < DecodePool.ENV_THREADS; i++)
                 kte.Add_thread();
             // System.out.println(">>>> Kdu_thread_env create " + kte);
             return kte;
@@ -183,6 +190,13 @@ class J2KDecoder implements Runnable {
         return krc;
     }
 
+    // the compositor of the view on the calling decoder thread
+    static void destroyCompositor(J2KView view) {
+        Kdu_region_compositor krc = localCompositor.get().remove(view);
+        if (krc != null)
+            destroyCompositor(krc);
+    }
+
     private static void destroyCompositor(Kdu_region_compositor krc) {
         try {
             // System.out.println(">>>> compositor destroy " + krc + " " + Thread.currentThread().getName());
@@ -195,22 +209,4 @@ class J2KDecoder implements Runnable {
         }
     }
 
-    private static void abolish() {
-        try {
-            Kdu_region_compositor krc = localCompositor.get();
-            if (krc != null) {
-                destroyCompositor(krc);
-                localCompositor.set(null);
-            }
-            Kdu_thread_env kte = localThread.get();
-            if (kte != null) {
-                kte.Destroy();
-                localThread.set(null);
-            }
-            decodeCache.get().invalidateAll();
-        } catch (KduException e) {
-            e.printStackTrace();
-        }
-    }
-
 }
@@ -1,18 +1,39 @@
 package org.helioviewer.jhv.view.j2k;
 
+import java.awt.Rectangle;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
 
 import kdu_jni.KduException;
 
+import org.helioviewer.jhv.Settings;
 import org.helioviewer.jhv.gui.UITimer;
+import org.helioviewer.jhv.io.ServerSelector;
 import org.helioviewer.jhv.log.Log;
+import org.helioviewer.jhv.threads.JHVThread;
 import org.helioviewer.jhv.view.j2k.cache.CacheStatus;
+import org.helioviewer.jhv.view.j2k.cache.RegionTiles;
 import org.helioviewer.jhv.view.j2k.concurrency.BooleanSignal;
+import org.helioviewer.jhv.view.j2k.image.DecodeParams;
 import org.helioviewer.jhv.view.j2k.image.ReadParams;
+import org.helioviewer.jhv.view.j2k.image.ResolutionSet.ResolutionLevel;
+import org.helioviewer.jhv.view.j2k.io.http.HTTPConnectionPool;
 import org.helioviewer.jhv.view.j2k.io.jpip.DatabinMap;
+import org.helioviewer.jhv.view.j2k.io.jpip.JPIPAsyncChannel;
 import org.helioviewer.jhv.view.j2k.io.jpip.JPIPCache;
 import org.helioviewer.jhv.view.j2k.io.jpip.JPIPCacheManager;
 import org.helioviewer.jhv.view.j2k.io.jpip.JPIPConstants;
+import org.helioviewer.jhv.view.j2k.io.jpip.JPIPMetrics;
 import org.helioviewer.jhv.view.j2k.io.jpip.JPIPQuery;
 import org.helioviewer.jhv.view.j2k.io.jpip.JPIPResponse;
 import org.helioviewer.jhv.view.j2k.io.jpip.JPIPSocket;
@@ -20,23 +41,47 @@ import org.helioviewer.jhv.view.j2k.io.jpip.JPIPStream;
 
 class J2KReader implements Runnable {
 
+    // Number of requests sent ahead of their responses on the persistent connection
+    private static final int PIPELINE_WINDOW = Math.max(1, Integer.parseInt(Settings.getProperty("jpip.pipeline")));
+    // Number of JPIP channels sharing the download of multi-frame images
+    private static final int NUM_CHANNELS = Math.max(1, Integer.parseInt(Settings.getProperty("jpip.channels")));
+    // Wait for the connection of an additional channel, fewer channels are used after that
+    private static final long CHANNEL_LEASE_TIMEOUT = 1000;
+    // Bound on the cache model sent along refinement requests
+    private static final int MAX_MODEL_LENGTH = 8192;
+    // Download order of multi-frame images
+    private static final PrefetchStrategy STRATEGY = PrefetchStrategy.get(Settings.getProperty("jpip.prefetch"));
+    // Multi-frame downloads over non-blocking channels multiplexed on one thread for all readers
+    private static final boolean SELECTOR = "selector".equals(Settings.getProperty("jpip.transport"));
+
     private final BooleanSignal readerSignal = new BooleanSignal(false);
 
     private final J2KView view;
     private final JPIPCache cache;
+    private final JPIPMetrics metrics;
     private final Thread myThread;
 
     // A boolean flag used for stopping the thread
     private volatile boolean isAbolished;
 
     private JPIPSocket socket;
+    // additional channels, created on demand
+    private final JPIPSocket[] channels = new JPIPSocket[NUM_CHANNELS];
+    private ExecutorService channelExecutor;
+    // non-blocking channels of the selector transport, created on demand
+    private final JPIPAsyncChannel[] asyncChannels = new JPIPAsyncChannel[NUM_CHANNELS];
+
+    private final long startTime = System.currentTimeMillis();
+    private final AtomicBoolean playable = new AtomicBoolean();
 
     J2KReader(J2KView _view) throws KduException, IOException {
         view = _view;
 
         cache = view.getJPIPCache();
-        socket = new JPIPSocket(view.getURI(), cache);
+        metrics = JPIPMetrics.get(view.getURI());
+        socket = new JPIPSocket(view.getURI(), cache, false);
         initJPIP();
+        socket.release();
 
         myThread = new Thread(this, "Reader " + view.getName());
         myThread.setDaemon(true);
@@ -52,10 +97,20 @@ class J2KReader implements Runnable {
             return;
         isAbolished = true;
 
+        if (channelExecutor != null)
+            channelExecutor.shutdownNow();
         while (myThread.isAlive()) {
             try {
                 if (socket != null)
-                    socket.close(); // try to unblock i/o
+                    socket.abort(); // try to unblock i/o
+                for (int i = 1; i < NUM_CHANNELS; i++) {
+                    if (channels[i] != null)
+                        channels[i].abort();
+                }
+                for (JPIPAsyncChannel channel : asyncChannels) {
+                    if (channel != null)
+                        channel.close();
+                }
                 myThread.interrupt();
                 myThread.join(100);
             } catch (Exception e) { // avoid exit from loop
@@ -91,25 +146,408 @@ class J2KReader implements Runnable {
 
     private void initCloseSocket() {
         if (socket != null) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                Log.error("J2KReader.initJPIP() > Error closing socket.", e);
-            }
+            socket.close();
             socket = null;
         }
     }
 
-    private static String createQuery(String fSiz, int layer) {
-        return JPIPQuery.create(JPIPConstants.MAX_REQUEST_LEN, "stream", String.valueOf(layer), "fsiz", fSiz + ",closest", "rsiz", fSiz, "roff", "0,0");
+    private static String createQuery(String fSiz, Rectangle region, int layer, int qualityLayers) {
+        String query = JPIPQuery.create(JPIPConstants.MAX_REQUEST_LEN, "stream", String.valueOf(layer), "fsiz", fSiz + ",closest",
+                "rsiz", region.width + "," + region.height, "roff", region.x + "," + region.y);
+        return qualityLayers > 0 ? query + "&layers=" + qualityLayers : query;
+    }
+
+    private void closeChannels() {
+        for (int i = 1; i < NUM_CHANNELS; i++) {
+            if (channels[i] != null)
+                channels[i].close();
+        }
+        closeAsyncChannels();
+    }
+
+    // give the connections back to the pool while waiting
+    private void releaseConnections() {
+        socket.release();
+        for (int i = 1; i < NUM_CHANNELS; i++) {
+            if (channels[i] != null)
+                channels[i].release();
+        }
+    }
+
+    // position in order of the next incomplete step not yet requested, in circular order
+    private static int nextStep(String[] stepQuerys, int[] order, int from, ArrayDeque<Integer> inFlight) {
+        int len = order.length;
+        for (int i = 0; i < len; i++) {
+            int pos = (from + i) % len;
+            int step = order[pos];
+            if (stepQuerys[step] != null && !inFlight.contains(step))
+                return pos;
+        }
+        return -1;
+    }
+
+    // every frame has some data, report to the strategy once
+    private void checkPlayable(CacheStatus cacheStatus) {
+        int maxFrame = view.getMaximumFrameNumber();
+        if (maxFrame > 0 && !playable.get() && cacheStatus.getPartialUntil() == maxFrame && playable.compareAndSet(false, true))
+            STRATEGY.reportPlayable(view.getName(), System.currentTimeMillis() - startTime);
+    }
+
+    private void setFrameComplete(CacheStatus cacheStatus, ReadParams params, int step, int level, long tiles, boolean singleFrame) throws KduException {
+        if (tiles == RegionTiles.ALL)
+            cacheStatus.setFrameComplete(view.getSource(), step, level); // tell the cache status
+        else
+            cacheStatus.setRegionComplete(view.getSource(), step, level, tiles);
+        if (singleFrame)
+            view.signalDecoderFromReader(params); // refresh current image
+        checkPlayable(cacheStatus);
+        UITimer.cacheStatusChanged();
+    }
+
+    // the additional channel holding its connection, null if the host has none to spare;
+    // it does not wait long while this reader holds another connection to the host
+    @Nullable
+    private JPIPSocket getChannel(int i) throws KduException, IOException {
+        if (channelExecutor == null)
+            channelExecutor = Executors.newFixedThreadPool(NUM_CHANNELS - 1, new JHVThread.NamedThreadFactory("Reader Channel " + view.getName()));
+        if (channels[i] == null || channels[i].isClosed()) {
+            JPIPSocket channel = JPIPSocket.open(view.getURI(), cache, channels[i] != null, CHANNEL_LEASE_TIMEOUT);
+            if (channel == null)
+                return null;
+            channels[i] = channel;
+        } else if (!channels[i].tryConnect(CHANNEL_LEASE_TIMEOUT))
+            return null;
+        return channels[i];
+    }
+
+    private static boolean getChannelResult(Future<Boolean> future) throws KduException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) { // the channels are joined by the caller
+            Thread.currentThread().interrupt();
+            return true;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof KduException)
+                throw (KduException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    // serve the step from the persistent cache, returns null if done or else the query to send
+    @Nullable
+    private String loadStep(CacheStatus cacheStatus, ReadParams params, int step, String query, boolean singleFrame) throws KduException {
+        int level = params.decodeParams.resolution.level;
+        int stored = JPIPCacheManager.load(view.getCacheKey(step), cache, step);
+        if (stored >= 0 && stored <= level) {
+            //System.out.println(">> hit " + view.getURI() + " " + step + " " + level);
+            setFrameComplete(cacheStatus, params, step, level, RegionTiles.ALL, singleFrame);
+            return null;
+        }
+        if (stored >= 0) { // show the stored level now, ask only for the refinement
+            setFrameComplete(cacheStatus, params, step, stored, RegionTiles.ALL, singleFrame);
+            query += "&model=" + cache.getModel(step, MAX_MODEL_LENGTH);
+        }
+        return query;
+    }
+
+    // update the cache status with a response, returns whether the step is complete
+    private boolean processResponse(CacheStatus cacheStatus, ReadParams params, int step, JPIPResponse res, boolean singleFrame) throws KduException {
+        if (!res.isResponseComplete()) {
+            cacheStatus.setFramePartial(view.getSource(), step); // tell the cache status
+            checkPlayable(cacheStatus);
+            UITimer.cacheStatusChanged();
+            return false;
+        }
+
+        if (params.layers > 0) { // quality increment, the frame stays partial
+            cacheStatus.setFramePartial(view.getSource(), step);
+            checkPlayable(cacheStatus);
+            if (step == params.decodeParams.frame)
+                view.signalDecoderFromReader(params); // sharpen the current image
+            UITimer.cacheStatusChanged();
+        } else {
+            int level = params.decodeParams.resolution.level;
+            long tiles = params.decodeParams.tiles;
+            if (tiles == RegionTiles.ALL) { // only whole frames are persisted
+                JPIPStream stream = cache.get(step);
+                if (stream != null) // downloaded
+                    JPIPCacheManager.put(view.getCacheKey(step), level, stream);
+            }
+            setFrameComplete(cacheStatus, params, step, level, tiles, singleFrame);
+        }
+        return true;
     }
 
-    private static String[] createMultiQuery(String fSiz, int numFrames) {
-        String[] stepQuerys = new String[numFrames];
-        for (int lpi = 0; lpi < numFrames; lpi++) {
-            stepQuerys[lpi] = createQuery(fSiz, lpi);
+    // send queries in the given order until everything is complete or caching is interrupted, returns whether interrupted
+    private boolean readSteps(JPIPSocket sock, ReadParams params, String[] stepQuerys, int[] order, boolean singleFrame) throws KduException, IOException {
+        CacheStatus cacheStatus = view.getCacheStatus();
+        int numSteps = order.length;
+
+        int currentPos = 0;
+        int completeSteps = 0;
+        boolean stopReading = false;
+        ArrayDeque<Integer> inFlight = new ArrayDeque<>();
+        long[] firstSent = new long[stepQuerys.length];
+        while (completeSteps < numSteps) {
+            // keep the pipeline full
+            while (!stopReading && inFlight.size() < PIPELINE_WINDOW) {
+                int pos = nextStep(stepQuerys, order, currentPos, inFlight);
+                if (pos < 0)
+                    break;
+                int step = order[pos];
+                currentPos = pos + 1;
+
+                String query = loadStep(cacheStatus, params, step, stepQuerys[step], singleFrame);
+                if (query == null) {
+                    completeSteps++;
+                    stepQuerys[step] = null;
+                } else {
+                    sock.request(query);
+                    inFlight.add(step);
+                    if (firstSent[step] == 0)
+                        firstSent[step] = System.nanoTime();
+                }
+            }
+            // in-flight responses have to be drained before the next request
+            if (inFlight.isEmpty())
+                break;
+
+            // receive and add data to cache
+            int step = inFlight.poll();
+            JPIPResponse res = sock.receive(cache, step);
+
+            // react if query complete
+            if (processResponse(cacheStatus, params, step, res, singleFrame)) {
+                // mark query as complete
+                completeSteps++;
+                stepQuerys[step] = null;
+                metrics.frameComplete(System.nanoTime() - firstSent[step]);
+            }
+
+            // check whether caching has to be interrupted
+            if (readerSignal.isSignaled() || Thread.interrupted()) {
+                stopReading = true;
+            }
         }
-        return stepQuerys;
+        return stopReading;
+    }
+
+    // download the frames over the channels, returns whether interrupted
+    private boolean readFrames(ReadParams params, int[] frames) throws KduException, IOException {
+        CacheStatus cacheStatus = view.getCacheStatus();
+        ResolutionLevel res = params.decodeParams.resolution;
+        long tiles = params.decodeParams.tiles;
+        String fSiz = res.width + "," + res.height;
+        Rectangle region = RegionTiles.getBounds(tiles, res.width, res.height);
+
+        int[] todo = new int[frames.length];
+        int numTodo = 0;
+        for (int frame : frames) {
+            if (!cacheStatus.isRegionComplete(frame, res.level, tiles))
+                todo[numTodo++] = frame;
+        }
+        if (numTodo == 0)
+            return false;
+        if (SELECTOR)
+            return readFramesAsync(params, todo, numTodo, fSiz, region);
+
+        // the connections of all channels are leased before any reads, fewer channels if the host is busy
+        int numChannels = Math.min(NUM_CHANNELS, numTodo);
+        JPIPSocket[] channelSockets = new JPIPSocket[numChannels];
+        for (int i = 1; i < numChannels; i++) {
+            if ((channelSockets[i] = getChannel(i)) == null) {
+                numChannels = i;
+                break;
+            }
+        }
+
+        // interleave frames over channels
+        String[] stepQuerys = new String[view.getMaximumFrameNumber() + 1];
+        int[][] orders = new int[numChannels][];
+        for (int i = 0; i < numChannels; i++)
+            orders[i] = new int[(numTodo - i + numChannels - 1) / numChannels];
+        for (int i = 0; i < numTodo; i++) {
+            int frame = todo[i];
+            stepQuerys[frame] = createQuery(fSiz, region, frame, params.layers);
+            orders[i % numChannels][i / numChannels] = frame;
+        }
+
+        ArrayList<Future<Boolean>> futures = new ArrayList<>();
+        boolean joined = false;
+        try {
+            for (int i = 1; i < numChannels; i++) {
+                JPIPSocket channelSocket = channelSockets[i];
+                int[] channelOrder = orders[i];
+                futures.add(channelExecutor.submit(() -> readSteps(channelSocket, params, stepQuerys, channelOrder, false)));
+            }
+            boolean stopReading = readSteps(socket, params, stepQuerys, orders[0], false);
+            for (Future<Boolean> future : futures) {
+                stopReading |= getChannelResult(future);
+            }
+            joined = futures.stream().allMatch(Future::isDone); // not if interrupted
+            return stopReading;
+        } finally {
+            if (!joined) // before the retry closes their sockets and queues new reads behind them
+                joinChannels(futures, numChannels);
+        }
+    }
+
+    // abort the i/o of the channel readers and wait until they are done
+    private void joinChannels(ArrayList<Future<Boolean>> futures, int numChannels) {
+        for (int i = 1; i < numChannels; i++) {
+            if (channels[i] != null)
+                channels[i].abort();
+        }
+
+        boolean interrupted = Thread.interrupted();
+        for (Future<Boolean> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (Exception e) { // failed after the abort
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static class Received {
+
+        final int frame;
+        final JPIPResponse res;
+        final Exception error;
+
+        Received(int _frame, JPIPResponse _res, Exception _error) {
+            frame = _frame;
+            res = _res;
+            error = _error;
+        }
+
+    }
+
+    // steps shared by the async channels, handed out on the selector thread as responses arrive
+    private static class AsyncBatch {
+
+        private final ArrayDeque<Integer> work;
+        private final String[] stepQuerys;
+        final long[] firstSent;
+        final LinkedBlockingQueue<Received> received = new LinkedBlockingQueue<>();
+        private boolean stopped;
+
+        AsyncBatch(ArrayDeque<Integer> _work, String[] _stepQuerys) {
+            work = _work;
+            stepQuerys = _stepQuerys;
+            firstSent = new long[stepQuerys.length];
+        }
+
+        synchronized void next(JPIPAsyncChannel channel) {
+            Integer step;
+            if (stopped || (step = work.poll()) == null)
+                return;
+            if (firstSent[step] == 0)
+                firstSent[step] = System.nanoTime();
+
+            channel.request(stepQuerys[step], step, new JPIPAsyncChannel.Listener() {
+                @Override
+                public void responseComplete(int frame, JPIPResponse res) {
+                    if (!res.isResponseComplete())
+                        requeue(frame);
+                    received.add(new Received(frame, res, null));
+                    next(channel);
+                }
+
+                @Override
+                public void failed(int frame, Exception e) {
+                    received.add(new Received(frame, null, e));
+                }
+            });
+        }
+
+        private synchronized void requeue(int step) {
+            work.add(step);
+        }
+
+        synchronized void stop() {
+            stopped = true;
+        }
+
+    }
+
+    private JPIPAsyncChannel getAsyncChannel(int i) throws IOException {
+        if (asyncChannels[i] == null || asyncChannels[i].isClosed())
+            asyncChannels[i] = socket.openAsync(cache);
+        return asyncChannels[i];
+    }
+
+    private void closeAsyncChannels() {
+        for (int i = 0; i < NUM_CHANNELS; i++) {
+            if (asyncChannels[i] != null) {
+                asyncChannels[i].close();
+                asyncChannels[i] = null;
+            }
+        }
+    }
+
+    // download the frames over non-blocking channels served by the selector thread, returns whether interrupted
+    private boolean readFramesAsync(ReadParams params, int[] todo, int numTodo, String fSiz, Rectangle region) throws KduException, IOException {
+        CacheStatus cacheStatus = view.getCacheStatus();
+        String[] stepQuerys = new String[view.getMaximumFrameNumber() + 1];
+        ArrayDeque<Integer> work = new ArrayDeque<>(numTodo);
+        for (int i = 0; i < numTodo; i++) {
+            int frame = todo[i];
+            String query = loadStep(cacheStatus, params, frame, createQuery(fSiz, region, frame, params.layers), false);
+            if (query != null) {
+                stepQuerys[frame] = query;
+                work.add(frame);
+            }
+        }
+        int numSteps = work.size();
+        if (numSteps == 0)
+            return false;
+
+        AsyncBatch batch = new AsyncBatch(work, stepQuerys);
+        int numChannels = Math.min(NUM_CHANNELS, numSteps);
+        for (int i = 0; i < numChannels; i++) {
+            JPIPAsyncChannel channel = getAsyncChannel(i);
+            for (int j = 0; j < PIPELINE_WINDOW; j++)
+                batch.next(channel);
+        }
+
+        int completeSteps = 0;
+        try {
+            while (completeSteps < numSteps) {
+                Received r = batch.received.poll(100, TimeUnit.MILLISECONDS);
+                if (r != null) {
+                    if (r.error != null) {
+                        if (r.error instanceof KduException)
+                            throw (KduException) r.error;
+                        throw r.error instanceof IOException ? (IOException) r.error : new IOException(r.error);
+                    }
+                    if (processResponse(cacheStatus, params, r.frame, r.res, false)) {
+                        completeSteps++;
+                        metrics.frameComplete(System.nanoTime() - batch.firstSent[r.frame]);
+                    }
+                }
+                // check whether caching has to be interrupted
+                if (readerSignal.isSignaled() || Thread.interrupted())
+                    return true;
+            }
+        } catch (InterruptedException e) {
+            return true;
+        } finally {
+            batch.stop();
+            if (completeSteps < numSteps) // drop what is in flight
+                closeAsyncChannels();
+        }
+        return false;
     }
 
     @Override
@@ -122,6 +560,7 @@ class J2KReader implements Runnable {
             // wait for signal
             try {
                 view.setDownloading(false);
+                releaseConnections();
                 params = readerSignal.waitForSignal();
                 view.setDownloading(true);
             } catch (InterruptedException e) {
@@ -131,7 +570,7 @@ class J2KReader implements Runnable {
             try {
                 if (socket.isClosed()) {
                     // System.out.println(">>> reconnect");
-                    socket = new JPIPSocket(view.getURI(), cache);
+                    socket = new JPIPSocket(view.getURI(), cache, true);
                 }
 
                 int frame = params.decodeParams.frame;
@@ -144,77 +583,34 @@ class J2KReader implements Runnable {
                 }
 
                 // build query based on strategy
-                int currentStep;
-                String[] stepQuerys;
-                String fSiz = params.decodeParams.resolution.width + "," + params.decodeParams.resolution.height;
+                boolean stopReading = false;
                 if (singleFrame) {
-                    stepQuerys = new String[]{createQuery(fSiz, frame)};
-                    currentStep = frame;
+                    ResolutionLevel res = params.decodeParams.resolution;
+                    Rectangle region = RegionTiles.getBounds(params.decodeParams.tiles, res.width, res.height);
+                    String[] stepQuerys = new String[numFrames];
+                    stepQuerys[frame] = createQuery(res.width + "," + res.height, region, frame, 0);
+                    stopReading = readSteps(socket, params, stepQuerys, new int[]{frame}, true);
                 } else {
-                    stepQuerys = createMultiQuery(fSiz, numFrames);
-
-                    int partial = cacheStatus.getPartialUntil();
-                    currentStep = partial < numFrames - 1 ? partial : frame;
-                }
-
-                // send queries until everything is complete or caching is interrupted
-                int completeSteps = 0;
-                boolean stopReading = false;
-                while (!stopReading && completeSteps < stepQuerys.length) {
-                    if (currentStep >= stepQuerys.length)
-                        currentStep = 0;
-
-                    // if query is already complete, go to next step
-                    if (stepQuerys[currentStep] == null) {
-                        currentStep++;
-                        continue;
-                    }
-
-                    // receive and add data to cache
-                    long key = view.getCacheKey(currentStep);
-                    JPIPResponse res = null;
-                    JPIPStream stream = JPIPCacheManager.get(key, level);
-                    if (stream != null)
-                        cache.put(currentStep, stream);
-                    else
-                        res = socket.send(stepQuerys[currentStep], cache, currentStep);
-
-                    //if (res == null)
-                    //    System.out.println(">> hit " + view.getURI() + " " + currentStep + " " + level);
-
-                    // react if query complete
-                    if (res == null || res.isResponseComplete()) {
-                        // mark query as complete
-                        completeSteps++;
-                        stepQuerys[currentStep] = null;
-
-                        if (res != null && res.isResponseComplete() && (stream = cache.get(currentStep)) != null) // downloaded
-                            JPIPCacheManager.put(key, level, stream);
-                        cacheStatus.setFrameComplete(view.getSource(), currentStep, level); // tell the cache status
-                        if (singleFrame)
-                            view.signalDecoderFromReader(params); // refresh current image
-                    } else {
-                        cacheStatus.setFramePartial(view.getSource(), currentStep); // tell the cache status
-                    }
-
-                    UITimer.cacheStatusChanged();
-
-                    // select next query based on strategy
-                    if (!singleFrame)
-                        currentStep++;
-
-                    // check whether caching has to be interrupted
-                    if (readerSignal.isSignaled() || Thread.interrupted()) {
-                        stopReading = true;
+                    DecodeParams dp = params.decodeParams;
+                    for (PrefetchStrategy.Pass pass : STRATEGY.plan(view, cacheStatus, params)) {
+                        ReadParams passParams = params;
+                        if (pass.level != level || pass.layers != 0) {
+                            ResolutionLevel passRes = cacheStatus.getResolutionSet(frame).getResolutionLevel(pass.level);
+                            passParams = new ReadParams(false, new DecodeParams(dp.viewpoint, false, dp.subImage, passRes, frame, dp.factor, dp.tiles), pass.layers);
+                        }
+                        stopReading = readFrames(passParams, pass.order);
+                        if (stopReading)
+                            break;
                     }
                 }
+
                 // suicide if fully done
                 if (cacheStatus.isComplete(0)) {
                     view.setDownloading(false);
-                    try {
-                        socket.close();
-                    } catch (IOException ignore) {
-                    }
+                    socket.close();
+                    closeChannels();
+                    if (channelExecutor != null)
+                        channelExecutor.shutdown();
                     return;
                 }
 
@@ -225,18 +621,21 @@ class J2KReader implements Runnable {
                 }
             } catch (KduException | IOException e) {
                 // e.printStackTrace();
-                try {
-                    socket.close();
-                } catch (IOException ioe) {
-                    Log.error("J2KReader.run() > Error closing socket", ioe);
-                }
+                socket.close(); // the pool delays the reconnection after errors
+                closeChannels();
 
+                metrics.retry();
                 if (retries++ < 13)
                     readerSignal.signal(params); // signal to retry
-                else
-                    Log.error("Retry limit reached: " + view.getURI()); // something may be terribly wrong
+                else {
+                    Log.error("Retry limit reached: " + view.getURI() + '\n' + HTTPConnectionPool.getStats()); // something may be terribly wrong
+                    if (retries == 14) // once
+                        ServerSelector.failover(view);
+                }
             }
         }
+        socket.close();
+        closeChannels();
     }
 
     private int retries = 0;
@@ -1,15 +1,26 @@
 package org.helioviewer.jhv.view.j2k;
 
 import java.awt.EventQueue;
+import java.awt.Rectangle;
 import java.io.IOException;
 import java.net.URI;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
 
 import javax.annotation.Nullable;
 
 import kdu_jni.KduException;
 
+import org.helioviewer.jhv.JHVGlobals;
+import org.helioviewer.jhv.Settings;
+import org.helioviewer.jhv.base.Region;
 import org.helioviewer.jhv.base.lut.LUT;
+import org.helioviewer.jhv.camera.Camera;
+import org.helioviewer.jhv.camera.CameraHelper;
+import org.helioviewer.jhv.display.Display;
+import org.helioviewer.jhv.display.Viewport;
 import org.helioviewer.jhv.imagedata.ImageBuffer;
 import org.helioviewer.jhv.imagedata.ImageData;
 import org.helioviewer.jhv.imagedata.SubImage;
@@ -17,14 +28,20 @@ import org.helioviewer.jhv.io.APIRequest;
 import org.helioviewer.jhv.io.APIResponse;
 import org.helioviewer.jhv.layers.Movie;
 import org.helioviewer.jhv.log.Log;
+import org.helioviewer.jhv.math.Quat;
+import org.helioviewer.jhv.math.Vec3;
 import org.helioviewer.jhv.metadata.MetaData;
 import org.helioviewer.jhv.metadata.PixelBasedMetaData;
+import org.helioviewer.jhv.metadata.XMLMetaDataContainer;
 import org.helioviewer.jhv.position.Position;
 import org.helioviewer.jhv.time.JHVDate;
+import org.helioviewer.jhv.timelines.draw.DrawController;
+import org.helioviewer.jhv.timelines.draw.TimeAxis;
 import org.helioviewer.jhv.view.BaseView;
 import org.helioviewer.jhv.view.j2k.cache.CacheStatus;
 import org.helioviewer.jhv.view.j2k.cache.CacheStatusLocal;
 import org.helioviewer.jhv.view.j2k.cache.CacheStatusRemote;
+import org.helioviewer.jhv.view.j2k.cache.RegionTiles;
 import org.helioviewer.jhv.view.j2k.image.DecodeParams;
 import org.helioviewer.jhv.view.j2k.image.ReadParams;
 import org.helioviewer.jhv.view.j2k.image.ResolutionSet.ResolutionLevel;
@@ -34,6 +51,7 @@ import org.helioviewer.jhv.view.j2k.kakadu.KakaduSource;
 public class J2KView extends BaseView {
 
     private static final int HIRES_CUTOFF = 1280;
+    private static final int AHEAD_FRAMES = Integer.parseInt(Settings.getProperty("decode.ahead"));
 
     private int targetFrame = 0;
     private int trueFrame = 0;
@@ -41,11 +59,22 @@ public class J2KView extends BaseView {
     private final long[] cacheKey;
 
     private final DecodeExecutor decoder = new DecodeExecutor();
-    private final KakaduSource kduSource;
+    // order of the decode requests, and of the last one shown (event thread)
+    private final AtomicLong decodeSerial = new AtomicLong();
+    private long shownSerial;
+    private final int decodePartition = DecodeCache.newPartition();
+    private DecodeAhead decodeAhead;
+    private volatile KakaduSource kduSource;
+
+    // frame metadata, parsed on first use or in the background; metaData holds only the first and last
+    private final XMLMetaDataContainer[] containers;
+    private final AtomicReferenceArray<MetaData> frameMetaData;
+    private final JHVDate[] frameTimes;
+    private final long[] frameMillis; // sorted index of frameTimes
     private JPIPCache jpipCache;
 
-    protected final CacheStatus cacheStatus;
-    protected J2KReader reader;
+    protected volatile CacheStatus cacheStatus;
+    protected volatile J2KReader reader;
 
     public J2KView(URI _uri, APIRequest _request, APIResponse _response) throws Exception {
         super(_uri, _request);
@@ -79,12 +108,35 @@ public class J2KView extends BaseView {
             kduSource = new KakaduSource(jpipCache, uri);
             maxFrame = kduSource.getNumberLayers() - 1;
             metaData = new MetaData[maxFrame + 1];
-
-            kduSource.extractMetaData(metaData);
+            if (maxFrame > 0 && AHEAD_FRAMES > 0)
+                decodeAhead = new DecodeAhead(AHEAD_FRAMES);
+
+            // only the time stamps of all frames are needed now, the rest of the metadata is parsed on demand
+            String[] xml = kduSource.extractXMLStrings(maxFrame + 1);
+            containers = new XMLMetaDataContainer[maxFrame + 1];
+            frameTimes = new JHVDate[maxFrame + 1];
+            frameMetaData = new AtomicReferenceArray<>(maxFrame + 1);
             for (int i = 0; i <= maxFrame; i++) {
-                if (metaData[i] == null)
-                    metaData[i] = new PixelBasedMetaData(256, 256, i); // tbd real size
+                if (xml[i] == null) {
+                    frameMetaData.set(i, new PixelBasedMetaData(256, 256, i)); // tbd real size
+                    frameTimes[i] = frameMetaData.get(i).getViewpoint().time;
+                } else {
+                    containers[i] = new XMLMetaDataContainer(xml[i]);
+                    frameTimes[i] = containers[i].getDateObs();
+                }
             }
+            frameMillis = new long[maxFrame + 1];
+            for (int i = 0; i <= maxFrame; i++)
+                frameMillis[i] = frameTimes[i].milli;
+
+            if (containers[0] != null)
+                frameMetaData.set(0, containers[0].getHVMetaData(0, true));
+            if (containers[maxFrame] != null)
+                frameMetaData.set(maxFrame, containers[maxFrame].getHVMetaData(maxFrame, true));
+            metaData[0] = frameMetaData.get(0);
+            metaData[maxFrame] = frameMetaData.get(maxFrame);
+            if (maxFrame > 1)
+                JHVGlobals.getExecutorService().execute(() -> IntStream.range(1, maxFrame).parallel().forEach(this::getFrameMetaData));
 
             if (frames != null) {
                 if (maxFrame + 1 != frames.length)
@@ -114,6 +166,21 @@ public class J2KView extends BaseView {
         }
     }
 
+    private MetaData getFrameMetaData(int frame) {
+        MetaData m = frameMetaData.get(frame);
+        if (m == null) {
+            try {
+                m = containers[frame].getHVMetaData(frame, true);
+            } catch (Exception e) {
+                Log.warn(uri + "[" + frame + "]: " + e.getMessage());
+                m = new PixelBasedMetaData(256, 256, frame); // tbd real size
+            }
+            if (!frameMetaData.compareAndSet(frame, null, m))
+                m = frameMetaData.get(frame);
+        }
+        return m;
+    }
+
     long getCacheKey(int frame) {
         return frame < 0 || frame >= cacheKey.length ? 0 : cacheKey[frame];
     }
@@ -130,22 +197,69 @@ public class J2KView extends BaseView {
 
     private volatile boolean isAbolished = false;
 
+    boolean isAbolished() {
+        return isAbolished;
+    }
+
     @Override
     public void abolish() {
         if (isAbolished)
             return;
         isAbolished = true;
 
+        if (decodeAhead != null)
+            Log.debug(getName() + ": decode-ahead hits " + decodeAhead.getHits() + ", misses " + decodeAhead.getMisses());
+
         new Thread(() -> {
-            decoder.abolish();
-            if (reader != null) {
-                reader.abolish();
-                reader = null;
+            synchronized (this) { // after a switch to local in progress
+                decoder.abolish(this);
+                DecodeCache.invalidate(decodePartition);
+                if (reader != null) {
+                    reader.abolish();
+                    reader = null;
+                }
+                kduDestroy();
             }
-            kduDestroy();
         }).start();
     }
 
+    // Continue from the downloaded file of the image in place of the JPIP stream.
+    // Metadata, decoded images and the current frame are kept; returns false if
+    // the file does not hold the same frames.
+    public synchronized boolean switchToLocal(URI fileURI) {
+        if (isAbolished || jpipCache == null)
+            return false;
+
+        KakaduSource localSource;
+        CacheStatus localStatus;
+        try {
+            localSource = new KakaduSource(null, fileURI);
+            if (localSource.getNumberLayers() != maxFrame + 1) {
+                Log.warn(fileURI + ": frames differ from " + uri);
+                return false;
+            }
+            localStatus = new CacheStatusLocal(localSource, maxFrame);
+        } catch (Exception e) {
+            Log.warn(fileURI + ": " + e.getMessage());
+            return false;
+        }
+
+        J2KReader oldReader = reader;
+        reader = null;
+        if (oldReader != null)
+            oldReader.abolish();
+
+        kduSource = localSource;
+        cacheStatus = localStatus;
+        setURI(fileURI);
+        isDownloading = false;
+        decoder.reset(this); // compositors reading from the JPIP cache
+        kduDestroy();
+
+        EventQueue.invokeLater(() -> Display.render(1)); // decode at full quality
+        return true;
+    }
+
     private void kduDestroy() {
         try {
             if (jpipCache != null) {
@@ -178,26 +292,30 @@ public class J2KView extends BaseView {
             case Swing:
                 if (targetFrame == maxFrame) {
                     Movie.setAnimationMode(AnimationMode.SwingDown);
-                    return metaData[targetFrame - 1].getViewpoint().time;
+                    return frameTimes[targetFrame - 1];
                 }
                 break;
             case SwingDown:
                 if (targetFrame == 0) {
                     Movie.setAnimationMode(AnimationMode.Swing);
-                    return metaData[1].getViewpoint().time;
+                    return frameTimes[1];
                 }
-                return metaData[targetFrame - 1].getViewpoint().time;
+                return frameTimes[targetFrame - 1];
             default: // Loop
                 if (next > maxFrame) {
-                    return metaData[0].getViewpoint().time;
+                    return frameTimes[0];
                 }
         }
-        return metaData[next].getViewpoint().time;
+        return frameTimes[next];
     }
 
     @Override
     public void setFrame(JHVDate time) {
-        int frame = getFrameNumber(time);
+        setFrameNumber(getFrameNumber(time));
+    }
+
+    @Override
+    public void setFrameNumber(int frame) {
         if (frame != targetFrame) {
             if (frame > cacheStatus.getPartialUntil())
                 return;
@@ -205,14 +323,24 @@ public class J2KView extends BaseView {
         }
     }
 
-    private int getFrameNumber(JHVDate time) {
-        int frame = -1;
-        long lastDiff, currentDiff = -Long.MAX_VALUE;
-        do {
-            lastDiff = currentDiff;
-            currentDiff = metaData[++frame].getViewpoint().time.milli - time.milli;
-        } while (currentDiff < 0 && frame < maxFrame);
-        return -lastDiff < currentDiff ? frame - 1 : frame;
+    // nearest frame, the later one on ties
+    @Override
+    public int getFrameNumber(JHVDate time) {
+        long t = time.milli;
+        int lo = 0, hi = maxFrame + 1; // first frame not before t
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (frameMillis[mid] < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        if (lo == 0)
+            return 0;
+        if (lo > maxFrame)
+            return maxFrame;
+        return t - frameMillis[lo - 1] < frameMillis[lo] - t ? lo - 1 : lo;
     }
 
     @Override
@@ -222,17 +350,17 @@ public class J2KView extends BaseView {
         } else if (frame > maxFrame) {
             frame = maxFrame;
         }
-        return metaData[frame].getViewpoint().time;
+        return frameTimes[frame];
     }
 
     @Override
     public JHVDate getFrameTime(JHVDate time) {
-        return metaData[getFrameNumber(time)].getViewpoint().time;
+        return frameTimes[getFrameNumber(time)];
     }
 
     @Override
     public MetaData getMetaData(JHVDate time) {
-        return metaData[getFrameNumber(time)];
+        return getFrameMetaData(getFrameNumber(time));
     }
 
     private volatile boolean isDownloading;
@@ -247,24 +375,114 @@ public class J2KView extends BaseView {
     }
 
     @Override
-    public void decode(Position viewpoint, double pixFactor, double factor) {
-        DecodeParams decodeParams = getDecodeParams(viewpoint, targetFrame, pixFactor, factor);
-        if (reader != null && !decodeParams.complete) {
+    public void decode(Position viewpoint, @Nullable Viewport vp, double pixFactor, double factor) {
+        DecodeParams decodeParams = getDecodeParams(viewpoint, vp, targetFrame, pixFactor, factor);
+        if (!decodeParams.complete) {
             signalReader(decodeParams);
         }
-        decoder.decode(this, decodeParams);
+
+        if (decodeAhead != null) {
+            if (Movie.isPlaying()) {
+                ImageBuffer imageBuffer = decodeAhead.get(decodeParams);
+                decodeAhead(viewpoint, vp, pixFactor, factor);
+                if (imageBuffer != null) {
+                    setDataFromDecoder(decodeParams, imageBuffer, decodeSerial.incrementAndGet());
+                    return;
+                }
+            } else
+                decodeAhead.clear();
+        }
+
+        if (decodeParams.complete) { // a cached decode containing the region is as good
+            DecodeParams covering = DecodeCache.getCovering(decodePartition, decodeParams);
+            ImageBuffer imageBuffer = covering == null ? null : DecodeCache.get(decodePartition, covering);
+            if (imageBuffer != null && imageBuffer.retain()) {
+                setDataFromDecoder(new DecodeParams(viewpoint, true, covering.subImage, covering.resolution, covering.frame, covering.factor, decodeParams.tiles), imageBuffer, decodeSerial.incrementAndGet());
+                return;
+            }
+        }
+        decoder.decode(this, decodeParams, decodeSerial.incrementAndGet());
     }
 
-    protected DecodeParams getDecodeParams(Position viewpoint, int frame, double pixFactor, double factor) {
+    // schedule the frames following targetFrame in animation order
+    private void decodeAhead(Position viewpoint, @Nullable Viewport vp, double pixFactor, double factor) {
+        AnimationMode mode = Movie.getAnimationMode();
+        boolean down = mode == AnimationMode.SwingDown;
+        int partialUntil = cacheStatus.getPartialUntil();
+        int frame = targetFrame;
+
+        for (int i = 0; i < decodeAhead.getCapacity(); i++) {
+            if (down) {
+                if (frame == 0) {
+                    down = false;
+                    frame = 1;
+                } else
+                    frame--;
+            } else if (frame == maxFrame) {
+                if (mode == AnimationMode.Stop)
+                    return;
+                if (mode == AnimationMode.Loop)
+                    frame = 0;
+                else {
+                    down = true;
+                    frame--;
+                }
+            } else
+                frame++;
+
+            if (frame == targetFrame || frame > partialUntil)
+                return;
+
+            DecodeParams params = getDecodeParams(viewpoint, vp, frame, pixFactor, factor);
+            if (params.complete && decodeAhead.claim(params))
+                decoder.decodeAhead(this, params);
+        }
+    }
+
+    private static final int VISIBLE_SAMPLES = 9;
+    private static final double VISIBLE_MARGIN = 1. / 64;
+
+    // cells of the frame seen through the viewport, sampled as the orthographic shader does
+    private static long getVisibleTiles(MetaData m, ResolutionLevel res, Position viewpoint, @Nullable Viewport vp) {
+        if (vp == null || viewpoint == null || Display.mode != Display.DisplayMode.Orthographic)
+            return RegionTiles.ALL;
+
+        Camera camera = Display.getCamera();
+        Quat q = Quat.rotate(camera.getCurrentDragRotation(), viewpoint.toQuat());
+        Quat rotation = Quat.rotateWithConjugate(q, m.getCenterRotation());
+        Region r = m.roiToRegion(new SubImage(0, 0, res.width, res.height, res.width, res.height), res.factorX, res.factorY);
+
+        double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+        for (int j = 0; j < VISIBLE_SAMPLES; j++) {
+            for (int i = 0; i < VISIBLE_SAMPLES; i++) {
+                double sx = vp.x + i * vp.width / (VISIBLE_SAMPLES - 1.);
+                double sy = vp.yAWT + j * vp.height / (VISIBLE_SAMPLES - 1.);
+                Vec3 v = CameraHelper.getVectorFromSphereOrPlane(camera, vp, sx, sy, rotation);
+                if (v == null)
+                    return RegionTiles.ALL;
+
+                double fx = (v.x - r.llx) / r.width;
+                double fy = (-v.y - r.lly) / r.height;
+                x0 = Math.min(x0, fx);
+                y0 = Math.min(y0, fy);
+                x1 = Math.max(x1, fx);
+                y1 = Math.max(y1, fy);
+            }
+        }
+        return RegionTiles.get(x0 - VISIBLE_MARGIN, y0 - VISIBLE_MARGIN, x1 + VISIBLE_MARGIN, y1 + VISIBLE_MARGIN);
+    }
+
+    protected DecodeParams getDecodeParams(Position viewpoint, @Nullable Viewport vp, int frame, double pixFactor, double factor) {
         ResolutionLevel res;
         SubImage subImage;
+        long tiles = RegionTiles.ALL;
 
         if (Movie.isRecording()) { // all bets are off
             res = cacheStatus.getResolutionSet(frame).getResolutionLevel(0);
             subImage = new SubImage(0, 0, res.width, res.height, res.width, res.height);
             factor = 1;
         } else {
-            MetaData m = metaData[frame];
+            MetaData m = getFrameMetaData(frame);
             int reqHeight = (int) (m.getPhysicalRegion().height * pixFactor + .5);
 
             res = cacheStatus.getResolutionSet(frame).getNextResolutionLevel(reqHeight, reqHeight);
@@ -274,22 +492,34 @@ public class J2KView extends BaseView {
             if (maxDim > HIRES_CUTOFF && Movie.isPlaying()) {
                 factor = Math.min(factor, 0.5);
             }
+            tiles = getVisibleTiles(m, res, viewpoint, vp);
+            if (tiles != RegionTiles.ALL) { // decode only the visible cells
+                Rectangle r = RegionTiles.getBounds(tiles, res.width, res.height);
+                subImage = new SubImage(r.x, r.y, r.width, r.height, res.width, res.height);
+            }
         }
-        AtomicBoolean status = cacheStatus.getFrameStatus(frame, res.level); // before signalling to reader
-        return new DecodeParams(viewpoint, status != null && status.get(), subImage, res, frame, factor);
+        boolean complete = cacheStatus.isRegionComplete(frame, res.level, tiles); // before signalling to reader
+        return new DecodeParams(viewpoint, complete, subImage, res, frame, factor, tiles);
     }
 
     protected void signalReader(DecodeParams decodeParams) {
+        J2KReader r = reader;
+        if (r == null) // local
+            return;
+
         int level = decodeParams.resolution.level;
         boolean priority = !Movie.isPlaying();
 
-        if (priority || level < currentLevel) {
-            reader.signalReader(new ReadParams(priority, decodeParams));
+        if (priority || level < currentLevel || (decodeParams.tiles & ~currentTiles) != 0) {
+            TimeAxis selection = DrawController.selectedAxis;
+            r.signalReader(new ReadParams(priority, decodeParams, 0, selection.start(), selection.end(), Movie.getAnimationMode()));
         }
         currentLevel = level;
+        currentTiles = decodeParams.tiles;
     }
 
     private int currentLevel = 10000;
+    private long currentTiles = RegionTiles.ALL;
 
     void signalDecoderFromReader(ReadParams params) {
         if (isAbolished)
@@ -297,30 +527,56 @@ public class J2KView extends BaseView {
         EventQueue.invokeLater(() -> {
             if (params.decodeParams.frame == targetFrame) {
                 // params.decodeParams.complete = true;
-                decoder.decode(this, params.decodeParams);
+                decoder.decode(this, params.decodeParams, decodeSerial.incrementAndGet());
             }
         });
     }
 
-    void setDataFromDecoder(DecodeParams decodeParams, ImageBuffer imageBuffer) {
-        if (isAbolished)
+    // results may complete out of order, the ones older than the image shown are dropped
+    void setDataFromDecoder(DecodeParams decodeParams, ImageBuffer imageBuffer, long serial) {
+        if (isAbolished) {
+            imageBuffer.release();
             return;
-
-        trueFrame = decodeParams.frame;
+        }
 
         ImageData data = new ImageData(imageBuffer);
         data.setViewpoint(decodeParams.viewpoint);
 
-        MetaData m = metaData[trueFrame];
+        MetaData m = getFrameMetaData(decodeParams.frame);
         data.setMetaData(m);
         data.setRegion(m.roiToRegion(decodeParams.subImage, decodeParams.resolution.factorX, decodeParams.resolution.factorY));
 
         EventQueue.invokeLater(() -> {
-            if (dataHandler != null)
+            if (dataHandler != null && serial > shownSerial) {
+                shownSerial = serial;
+                trueFrame = decodeParams.frame;
                 dataHandler.handleData(data);
+            } else
+                data.release();
         });
     }
 
+    void setDataFromDecodeAhead(DecodeParams decodeParams, @Nullable ImageBuffer imageBuffer) {
+        if (isAbolished) {
+            if (imageBuffer != null)
+                imageBuffer.release();
+            return;
+        }
+        decodeAhead.put(decodeParams, imageBuffer);
+    }
+
+    public long getDecodeAheadHits() {
+        return decodeAhead == null ? 0 : decodeAhead.getHits();
+    }
+
+    public long getDecodeAheadMisses() {
+        return decodeAhead == null ? 0 : decodeAhead.getMisses();
+    }
+
+    int getDecodePartition() {
+        return decodePartition;
+    }
+
     KakaduSource getSource() {
         return kduSource;
     }
@@ -351,7 +607,6 @@ public class J2KView extends BaseView {
         return cacheStatus;
     }
 
-    // very slow
     @Override
     public String getXMLMetaData() throws Exception {
         return kduSource.extractXMLString(trueFrame);
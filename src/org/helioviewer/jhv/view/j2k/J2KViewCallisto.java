@@ -4,10 +4,14 @@ import java.awt.Rectangle;
 import java.net.URI;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
+import org.helioviewer.jhv.display.Viewport;
 import org.helioviewer.jhv.imagedata.SubImage;
 import org.helioviewer.jhv.io.APIRequest;
 import org.helioviewer.jhv.io.APIResponse;
 import org.helioviewer.jhv.position.Position;
+import org.helioviewer.jhv.view.j2k.cache.RegionTiles;
 import org.helioviewer.jhv.view.j2k.image.DecodeParams;
 import org.helioviewer.jhv.view.j2k.image.ReadParams;
 import org.helioviewer.jhv.view.j2k.image.ResolutionSet.ResolutionLevel;
@@ -25,16 +29,18 @@ public class J2KViewCallisto extends J2KView {
     private Rectangle region;
 
     @Override
-    protected DecodeParams getDecodeParams(Position viewpoint, int frame, double pixFactor, double factor) {
+    protected DecodeParams getDecodeParams(Position viewpoint, @Nullable Viewport vp, int frame, double pixFactor, double factor) {
         ResolutionLevel res = getResolutionLevel(frame, 0);
         SubImage subImage = new SubImage(region.x, region.y, region.width, region.height, res.width, res.height);
         AtomicBoolean status = cacheStatus.getFrameStatus(frame, res.level);
-        return new DecodeParams(viewpoint, status != null && status.get(), subImage, res, frame, factor);
+        return new DecodeParams(viewpoint, status != null && status.get(), subImage, res, frame, factor, RegionTiles.ALL);
     }
 
     @Override
     protected void signalReader(DecodeParams decodeParams) { // not used
-        reader.signalReader(new ReadParams(true, decodeParams));
+        J2KReader r = reader;
+        if (r != null) // local, abolished or switched to the downloaded file
+            r.signalReader(new ReadParams(true, decodeParams));
     }
 
 }
@@ -0,0 +1,180 @@
+package org.helioviewer.jhv.view.j2k;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helioviewer.jhv.log.Log;
+import org.helioviewer.jhv.view.View.AnimationMode;
+import org.helioviewer.jhv.view.j2k.cache.CacheStatus;
+import org.helioviewer.jhv.view.j2k.image.ReadParams;
+import org.helioviewer.jhv.view.j2k.image.ResolutionSet;
+
+// Order in which J2KReader downloads the frames of a movie, as a list of passes
+enum PrefetchStrategy {
+
+    // all frames at the requested level, starting after the frames already present
+    Sweep {
+        @Override
+        List<Pass> plan(J2KView view, CacheStatus cacheStatus, ReadParams params) {
+            int frame = params.decodeParams.frame, level = params.decodeParams.resolution.level;
+            return single(level, sweep(startFrame(cacheStatus, frame, view.getMaximumFrameNumber() + 1), view.getMaximumFrameNumber() + 1));
+        }
+    },
+    // all frames at a coarse level first, then refine
+    CoarseFirst {
+        @Override
+        List<Pass> plan(J2KView view, CacheStatus cacheStatus, ReadParams params) {
+            int frame = params.decodeParams.frame, level = params.decodeParams.resolution.level;
+            int numFrames = view.getMaximumFrameNumber() + 1;
+            int[] order = sweep(startFrame(cacheStatus, frame, numFrames), numFrames);
+
+            ResolutionSet set = cacheStatus.getResolutionSet(frame);
+            int coarse = Math.max(level, set.getPreviousResolutionLevel(COARSE_SIZE, COARSE_SIZE).level);
+            if (coarse == level)
+                return single(level, order);
+
+            List<Pass> passes = new ArrayList<>(2);
+            passes.add(new Pass(coarse, order));
+            passes.add(new Pass(level, order));
+            return passes;
+        }
+    },
+    // frames in the order the movie is going to play them from the current frame
+    Lookahead {
+        @Override
+        List<Pass> plan(J2KView view, CacheStatus cacheStatus, ReadParams params) {
+            int frame = params.decodeParams.frame, level = params.decodeParams.resolution.level;
+            int numFrames = view.getMaximumFrameNumber() + 1;
+            int[] order = new int[numFrames];
+            int n = 0;
+
+            AnimationMode mode = params.animationMode;
+            if (mode == AnimationMode.Loop) {
+                return single(level, sweep(frame, numFrames));
+            } else if (mode == AnimationMode.SwingDown) {
+                for (int i = frame; i >= 0; i--)
+                    order[n++] = i;
+                for (int i = frame + 1; i < numFrames; i++)
+                    order[n++] = i;
+            } else { // Stop, Swing
+                for (int i = frame; i < numFrames; i++)
+                    order[n++] = i;
+                for (int i = frame - 1; i >= 0; i--)
+                    order[n++] = i;
+            }
+            return single(level, order);
+        }
+    },
+    // all frames with few quality layers first, then with more
+    Progressive {
+        @Override
+        List<Pass> plan(J2KView view, CacheStatus cacheStatus, ReadParams params) {
+            int frame = params.decodeParams.frame, level = params.decodeParams.resolution.level;
+            int numFrames = view.getMaximumFrameNumber() + 1;
+            int[] order = sweep(startFrame(cacheStatus, frame, numFrames), numFrames);
+
+            int numLayers = cacheStatus.getResolutionSet(frame).numQualityLayers;
+            List<Pass> passes = new ArrayList<>();
+            for (int layers = 1; layers < numLayers; layers *= LAYER_STEP)
+                passes.add(new Pass(level, order, layers));
+            passes.add(new Pass(level, order));
+            return passes;
+        }
+    },
+    // frames within the timeline selection first
+    Selection {
+        @Override
+        List<Pass> plan(J2KView view, CacheStatus cacheStatus, ReadParams params) {
+            int level = params.decodeParams.resolution.level;
+            int numFrames = view.getMaximumFrameNumber() + 1;
+            long start = params.selectionStart;
+            long end = params.selectionEnd;
+
+            int[] order = new int[numFrames];
+            int n = 0;
+            if (start < end) {
+                for (int i = 0; i < numFrames; i++) {
+                    long t = view.getFrameTime(i).milli;
+                    if (t >= start && t <= end)
+                        order[n++] = i;
+                }
+            }
+            if (n == 0)
+                return Sweep.plan(view, cacheStatus, params);
+
+            for (int i = 0; i < numFrames; i++) {
+                long t = view.getFrameTime(i).milli;
+                if (t < start || t > end)
+                    order[n++] = i;
+            }
+            return single(level, order);
+        }
+    };
+
+    private static final int COARSE_SIZE = 512;
+    private static final int LAYER_STEP = 4;
+
+    static class Pass {
+
+        final int level;
+        final int[] order;
+        final int layers; // quality layers, 0 for all
+
+        Pass(int _level, int[] _order) {
+            this(_level, _order, 0);
+        }
+
+        Pass(int _level, int[] _order, int _layers) {
+            level = _level;
+            order = _order;
+            layers = _layers;
+        }
+
+    }
+
+    // frames to download for a movie whose current frame and level are those of params
+    abstract List<Pass> plan(J2KView view, CacheStatus cacheStatus, ReadParams params);
+
+    private final AtomicLong playableCount = new AtomicLong();
+    private final AtomicLong playableTime = new AtomicLong();
+
+    // time from the start of the reader until every frame had some data
+    void reportPlayable(String name, long millis) {
+        playableCount.incrementAndGet();
+        playableTime.addAndGet(millis);
+        Log.info("Prefetch " + this + ": " + name + " playable in " + millis + "ms (mean " + getMeanPlayable() + "ms)");
+    }
+
+    long getMeanPlayable() {
+        long count = playableCount.get();
+        return count == 0 ? 0 : playableTime.get() / count;
+    }
+
+    static PrefetchStrategy get(String name) {
+        for (PrefetchStrategy strategy : values()) {
+            if (strategy.name().equalsIgnoreCase(name))
+                return strategy;
+        }
+        return Sweep;
+    }
+
+    private static int startFrame(CacheStatus cacheStatus, int frame, int numFrames) {
+        int partial = cacheStatus.getPartialUntil();
+        return partial < numFrames - 1 ? partial : frame;
+    }
+
+    private static int[] sweep(int from, int numFrames) {
+        int[] order = new int[numFrames];
+        for (int i = 0; i < numFrames; i++)
+            order[i] = (from + i) % numFrames;
+        return order;
+    }
+
+    private static List<Pass> single(int level, int[] order) {
+        List<Pass> passes = new ArrayList<>(1);
+        passes.add(new Pass(level, order));
+        return passes;
+    }
+
+}
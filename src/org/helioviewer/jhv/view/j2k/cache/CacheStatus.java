@@ -22,6 +22,10 @@ public interface CacheStatus {
 
     void setFrameComplete(KakaduSource source, int frame, int level) throws KduException;
 
+    boolean isRegionComplete(int frame, int level, long tiles);
+
+    void setRegionComplete(KakaduSource source, int frame, int level, long tiles) throws KduException;
+
     void setFramePartial(KakaduSource source, int frame) throws KduException;
 
 }
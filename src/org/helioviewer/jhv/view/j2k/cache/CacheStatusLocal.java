@@ -46,6 +46,15 @@ public class CacheStatusLocal implements CacheStatus {
     public void setFrameComplete(KakaduSource source, int frame, int level) {
     }
 
+    @Override
+    public boolean isRegionComplete(int frame, int level, long tiles) {
+        return true;
+    }
+
+    @Override
+    public void setRegionComplete(KakaduSource source, int frame, int level, long tiles) {
+    }
+
     @Override
     public void setFramePartial(KakaduSource source, int frame) {
     }
@@ -1,6 +1,9 @@
 package org.helioviewer.jhv.view.j2k.cache;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.annotation.Nullable;
 
@@ -10,40 +13,49 @@ import org.helioviewer.jhv.log.Log;
 import org.helioviewer.jhv.view.j2k.image.ResolutionSet;
 import org.helioviewer.jhv.view.j2k.kakadu.KakaduSource;
 
+// Completion is tracked per level in frame bitsets with counters, queries do not scan the frames
 public class CacheStatusRemote implements CacheStatus {
 
     private final int maxFrame;
-    private final ResolutionSet[] resolutionSet;
+    private final int numLevels;
+    private final AtomicReferenceArray<ResolutionSet> resolutionSet;
 
-    private int partialUntil = 0;
+    private final AtomicLongArray[] completeFrames;
+    private final AtomicInteger[] completeCount;
+    private final AtomicInteger partialUntil = new AtomicInteger();
 
     public CacheStatusRemote(KakaduSource source, int _maxFrame) throws KduException {
         maxFrame = _maxFrame;
-        resolutionSet = new ResolutionSet[maxFrame + 1];
-        resolutionSet[0] = source.getResolutionSet(0);
+        resolutionSet = new AtomicReferenceArray<>(maxFrame + 1);
+
+        ResolutionSet set0 = source.getResolutionSet(0);
+        resolutionSet.set(0, set0);
+
+        numLevels = set0.numLevels;
+        completeFrames = new AtomicLongArray[numLevels];
+        completeCount = new AtomicInteger[numLevels];
+        for (int i = 0; i < numLevels; i++) {
+            completeFrames[i] = new AtomicLongArray((maxFrame + 64) / 64);
+            completeCount[i] = new AtomicInteger();
+        }
     }
 
     @Override
     public int getPartialUntil() {
-        int i;
-        for (i = partialUntil; i <= maxFrame; i++) {
-            if (resolutionSet[i] == null)
-                break;
-        }
-        partialUntil = Math.max(0, i - 1);
-        return partialUntil;
+        return partialUntil.get();
     }
 
     @Override
     public ResolutionSet getResolutionSet(int frame) {
-        if (resolutionSet[frame] == null) {
+        ResolutionSet set = resolutionSet.get(frame);
+        if (set == null) {
             Log.error("resolutionSet[" + frame + "] null"); // never happened?
-            return resolutionSet[0];
+            return resolutionSet.get(0);
         }
-        return resolutionSet[frame];
+        return set;
     }
 
-    private boolean fullyComplete;
+    private volatile boolean fullyComplete;
     private static final AtomicBoolean full = new AtomicBoolean(true);
 
     @Override
@@ -51,16 +63,10 @@ public class CacheStatusRemote implements CacheStatus {
         if (fullyComplete)
             return true;
 
-        for (int i = 0; i <= maxFrame; i++) {
-            if (resolutionSet[i] == null)
-                return false;
-            AtomicBoolean status = resolutionSet[i].getComplete(level);
-            if (status == null || !status.get())
-                return false;
-        }
-        if (level == 0)
+        boolean complete = completeCount[Math.min(level, numLevels - 1)].get() == maxFrame + 1;
+        if (complete && level == 0)
             fullyComplete = true;
-        return true;
+        return complete;
     }
 
     @Nullable
@@ -68,9 +74,8 @@ public class CacheStatusRemote implements CacheStatus {
     public AtomicBoolean getFrameStatus(int frame, int level) {
         if (fullyComplete)
             return full;
-        if (resolutionSet[frame] == null)
-            return null;
-        return resolutionSet[frame].getComplete(level);
+        ResolutionSet set = resolutionSet.get(frame);
+        return set == null ? null : set.getComplete(level);
     }
 
     @Override
@@ -79,15 +84,61 @@ public class CacheStatusRemote implements CacheStatus {
             return;
 
         setFramePartial(source, frame);
-        if (resolutionSet[frame] != null)
-            resolutionSet[frame].setComplete(level);
+        resolutionSet.get(frame).setComplete(level);
+        countComplete(frame, level);
+    }
+
+    @Override
+    public boolean isRegionComplete(int frame, int level, long tiles) {
+        if (fullyComplete)
+            return true;
+        ResolutionSet set = resolutionSet.get(frame);
+        return set != null && set.isComplete(level, tiles);
+    }
+
+    @Override
+    public void setRegionComplete(KakaduSource source, int frame, int level, long tiles) throws KduException {
+        if (fullyComplete)
+            return;
+
+        setFramePartial(source, frame);
+        resolutionSet.get(frame).setComplete(level, tiles);
+        countComplete(frame, level);
     }
 
     @Override
     public void setFramePartial(KakaduSource source, int frame) throws KduException {
-        if (resolutionSet[frame] == null) {
-            resolutionSet[frame] = source.getResolutionSet(frame);
+        if (resolutionSet.get(frame) == null) {
+            resolutionSet.compareAndSet(frame, null, source.getResolutionSet(frame));
+            advancePartial();
         }
     }
 
+    // count the levels of the frame which became complete, each frame once per level
+    private void countComplete(int frame, int level) {
+        ResolutionSet set = resolutionSet.get(frame);
+        int idx = frame >>> 6;
+        long bit = 1L << (frame & 63);
+        for (int i = Math.min(level, numLevels - 1); i < numLevels; i++) {
+            if (!set.getComplete(i).get())
+                continue;
+
+            long word;
+            do {
+                word = completeFrames[i].get(idx);
+                if ((word & bit) != 0)
+                    break;
+            } while (!completeFrames[i].compareAndSet(idx, word, word | bit));
+            if ((word & bit) == 0)
+                completeCount[i].incrementAndGet();
+        }
+    }
+
+    // extend the run of frames with data from frame 0, every setter finishes the walk it may have unblocked
+    private void advancePartial() {
+        int p;
+        while ((p = partialUntil.get()) < maxFrame && resolutionSet.get(p + 1) != null)
+            partialUntil.compareAndSet(p, p + 1);
+    }
+
 }
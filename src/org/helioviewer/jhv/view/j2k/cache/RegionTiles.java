@@ -0,0 +1,49 @@
+package org.helioviewer.jhv.view.j2k.cache;
+
+import java.awt.Rectangle;
+
+import org.helioviewer.jhv.math.MathUtils;
+
+// Regions of a frame as a set of cells of a fixed grid, one bit per cell, independent of resolution level
+public class RegionTiles {
+
+    public static final long ALL = -1L;
+
+    private static final int GRID = 8;
+
+    // cells intersecting the region given in fractions of the frame, y from top
+    public static long get(double x0, double y0, double x1, double y1) {
+        int tx0 = MathUtils.clip((int) Math.floor(x0 * GRID), 0, GRID - 1);
+        int ty0 = MathUtils.clip((int) Math.floor(y0 * GRID), 0, GRID - 1);
+        int tx1 = MathUtils.clip((int) Math.ceil(x1 * GRID) - 1, tx0, GRID - 1);
+        int ty1 = MathUtils.clip((int) Math.ceil(y1 * GRID) - 1, ty0, GRID - 1);
+
+        long tiles = 0;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++)
+                tiles |= 1L << (ty * GRID + tx);
+        }
+        return tiles;
+    }
+
+    // bounding box of the cells at the given resolution
+    public static Rectangle getBounds(long tiles, int width, int height) {
+        int tx0 = GRID, ty0 = GRID, tx1 = -1, ty1 = -1;
+        for (int i = 0; i < GRID * GRID; i++) {
+            if ((tiles & (1L << i)) != 0) {
+                int tx = i % GRID, ty = i / GRID;
+                tx0 = Math.min(tx0, tx);
+                ty0 = Math.min(ty0, ty);
+                tx1 = Math.max(tx1, tx);
+                ty1 = Math.max(ty1, ty);
+            }
+        }
+        if (tx1 < 0)
+            return new Rectangle(0, 0, width, height);
+
+        int x0 = tx0 * width / GRID, y0 = ty0 * height / GRID;
+        int x1 = (tx1 + 1) * width / GRID, y1 = (ty1 + 1) * height / GRID;
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+}
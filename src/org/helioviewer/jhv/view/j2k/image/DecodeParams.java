@@ -11,18 +11,20 @@ public class DecodeParams {
     public final ResolutionSet.ResolutionLevel resolution;
     public final int frame;
     public final double factor;
+    public final long tiles; // region wanted from the server
 
-    public DecodeParams(Position _viewpoint, boolean _complete, SubImage _roi, ResolutionSet.ResolutionLevel _resolution, int _frame, double _factor) {
+    public DecodeParams(Position _viewpoint, boolean _complete, SubImage _roi, ResolutionSet.ResolutionLevel _resolution, int _frame, double _factor, long _tiles) {
         viewpoint = _viewpoint;
         complete = _complete;
         subImage = _roi;
         resolution = _resolution;
         frame = _frame;
         factor = _factor;
+        tiles = _tiles;
     }
 
     @Override
-    public boolean equals(Object o) { // viewpoint, complete don't participate
+    public boolean equals(Object o) { // viewpoint, complete, tiles don't participate
         if (!(o instanceof DecodeParams))
             return false;
         DecodeParams p = (DecodeParams) o;
@@ -30,7 +32,7 @@ public class DecodeParams {
     }
 
     @Override
-    public int hashCode() { // viewpoint, complete don't participate
+    public int hashCode() { // viewpoint, complete, tiles don't participate
         int result = 1;
         result = 31 * result + subImage.hashCode();
         result = 31 * result + resolution.hashCode();
@@ -1,13 +1,32 @@
 package org.helioviewer.jhv.view.j2k.image;
 
+import org.helioviewer.jhv.view.View.AnimationMode;
+
 public class ReadParams {
 
     public boolean priority;
     public final DecodeParams decodeParams;
+    public final int layers; // quality layers wanted, 0 for all
+    // timeline selection and animation mode, captured on the event thread for the reader
+    public final long selectionStart;
+    public final long selectionEnd;
+    public final AnimationMode animationMode;
 
     public ReadParams(boolean _priority, DecodeParams _decodeParams) {
+        this(_priority, _decodeParams, 0);
+    }
+
+    public ReadParams(boolean _priority, DecodeParams _decodeParams, int _layers) {
+        this(_priority, _decodeParams, _layers, 0, 0, AnimationMode.Loop);
+    }
+
+    public ReadParams(boolean _priority, DecodeParams _decodeParams, int _layers, long _selectionStart, long _selectionEnd, AnimationMode _animationMode) {
         priority = _priority;
         decodeParams = _decodeParams;
+        layers = _layers;
+        selectionStart = _selectionStart;
+        selectionEnd = _selectionEnd;
+        animationMode = _animationMode;
     }
 
 }
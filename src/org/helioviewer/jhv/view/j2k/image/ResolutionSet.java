@@ -1,6 +1,9 @@
 package org.helioviewer.jhv.view.j2k.image;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helioviewer.jhv.view.j2k.cache.RegionTiles;
 
 // A class describing the available resolution levels for a given image
 public class ResolutionSet {
@@ -8,22 +11,42 @@ public class ResolutionSet {
     // The indices represent the number of discardLayers
     private final ResolutionLevel[] resolutions;
     private final AtomicBoolean[] complete;
-    private final int numLevels;
+    private final AtomicLong[] completeTiles;
+    public final int numLevels;
     public final int numComps;
+    public final int numQualityLayers;
 
-    public ResolutionSet(int _numLevels, int _numComps) {
+    public ResolutionSet(int _numLevels, int _numComps, int _numQualityLayers) {
         numLevels = _numLevels;
         numComps = _numComps;
+        numQualityLayers = _numQualityLayers;
         resolutions = new ResolutionLevel[numLevels];
 
         complete = new AtomicBoolean[numLevels];
-        for (int i = 0; i < numLevels; i++)
+        completeTiles = new AtomicLong[numLevels];
+        for (int i = 0; i < numLevels; i++) {
             complete[i] = new AtomicBoolean();
+            completeTiles[i] = new AtomicLong();
+        }
     }
 
     public void setComplete(int level) {
-        for (int i = level; i < numLevels; i++)
+        for (int i = level; i < numLevels; i++) {
+            completeTiles[i].set(RegionTiles.ALL);
             complete[i].set(true);
+        }
+    }
+
+    // a region request brings the coarser levels of the region as well
+    public void setComplete(int level, long tiles) {
+        for (int i = level; i < numLevels; i++) {
+            if (completeTiles[i].accumulateAndGet(tiles, (a, b) -> a | b) == RegionTiles.ALL)
+                complete[i].set(true);
+        }
+    }
+
+    public boolean isComplete(int level, long tiles) {
+        return (completeTiles[Math.min(level, numLevels - 1)].get() & tiles) == tiles;
     }
 
     public AtomicBoolean getComplete(int level) {
@@ -1,5 +1,6 @@
 package org.helioviewer.jhv.view.j2k.io;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -41,8 +42,10 @@ public class ByteChannelInputStream extends InputStream {
             do {
                 buf.position(buf.limit());
                 buf.limit(buf.capacity());
-                chan.read(buf);
+                int read = chan.read(buf);
                 buf.flip();
+                if (read < 0)
+                    throw new EOFException("Connection closed");
             } while (buf.remaining() < len);
         }
     }
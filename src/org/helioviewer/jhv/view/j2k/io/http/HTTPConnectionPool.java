@@ -0,0 +1,164 @@
+package org.helioviewer.jhv.view.j2k.io.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.helioviewer.jhv.Settings;
+import org.helioviewer.jhv.log.Log;
+
+/*
+ * Keep-alive connections shared by all views, per host. A lease blocks while the
+ * host has its maximum of connections out, and after a failure the next connect
+ * to that host is delayed by an exponential backoff.
+ */
+public class HTTPConnectionPool {
+
+    private static final int MAX_PER_HOST = Math.max(1, Integer.parseInt(Settings.getProperty("jpip.connections")));
+    private static final long LEASE_TIMEOUT = 60000;
+    private static final long IDLE_TIMEOUT = 30000;
+    private static final long BACKOFF_BASE = 250;
+    private static final long BACKOFF_MAX = 30000;
+
+    private static class Host {
+
+        final Semaphore permits = new Semaphore(MAX_PER_HOST, true);
+        final ArrayDeque<HTTPSocket> idle = new ArrayDeque<>();
+
+        final AtomicLong connects = new AtomicLong();
+        final AtomicLong reconnects = new AtomicLong();
+        final AtomicLong reuses = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+
+        private int errors;
+        private long retryAt;
+
+        synchronized long getDelay() {
+            return retryAt - System.currentTimeMillis();
+        }
+
+        synchronized void failed() {
+            errors++;
+            retryAt = System.currentTimeMillis() + Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.min(errors - 1, 16));
+            failures.incrementAndGet();
+        }
+
+        synchronized void succeeded() {
+            errors = 0;
+            retryAt = 0;
+        }
+
+        synchronized HTTPSocket pollIdle() {
+            long now = System.currentTimeMillis();
+            HTTPSocket conn;
+            while ((conn = idle.pollLast()) != null) {
+                if (!conn.isClosed() && now - conn.getIdleSince() < IDLE_TIMEOUT)
+                    return conn;
+                close(conn);
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "connects=" + connects + " reconnects=" + reconnects + " reuses=" + reuses + " failures=" + failures;
+        }
+
+    }
+
+    private static final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    private static Host getHost(String key) {
+        return hosts.computeIfAbsent(key, k -> new Host());
+    }
+
+    public static String getHostKey(URI uri) {
+        int port = uri.getPort();
+        return uri.getHost() + ':' + (port <= 0 ? 80 : port);
+    }
+
+    public static HTTPSocket lease(URI uri, boolean reconnect) throws IOException {
+        HTTPSocket conn = lease(uri, reconnect, LEASE_TIMEOUT);
+        if (conn == null)
+            throw new IOException("No connection available to " + getHostKey(uri));
+        return conn;
+    }
+
+    // null if the host has no connection to spare within timeout ms
+    @Nullable
+    public static HTTPSocket lease(URI uri, boolean reconnect, long timeout) throws IOException {
+        String key = getHostKey(uri);
+        Host host = getHost(key);
+        try {
+            long delay = host.getDelay();
+            if (delay > 0)
+                Thread.sleep(delay);
+            if (!host.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                return null;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + key);
+        }
+
+        HTTPSocket conn = host.pollIdle();
+        if (conn != null) {
+            host.reuses.incrementAndGet();
+            return conn;
+        }
+
+        try {
+            conn = new HTTPSocket(uri);
+        } catch (IOException e) {
+            host.permits.release();
+            host.failed();
+            Log.warn("Connection to " + key + " failed (" + host + "): " + e.getMessage());
+            throw e;
+        }
+        host.succeeded();
+        host.connects.incrementAndGet();
+        if (reconnect)
+            host.reconnects.incrementAndGet();
+        return conn;
+    }
+
+    // give back a connection with no response pending
+    public static void release(HTTPSocket conn) {
+        Host host = getHost(conn.getHostKey());
+        if (!conn.isClosed()) {
+            conn.setIdle();
+            synchronized (host) {
+                host.idle.addLast(conn);
+            }
+        }
+        host.permits.release();
+    }
+
+    // give back a connection in unknown state, it is closed
+    public static void discard(HTTPSocket conn, boolean failed) {
+        Host host = getHost(conn.getHostKey());
+        close(conn);
+        if (failed)
+            host.failed();
+        host.permits.release();
+    }
+
+    private static void close(HTTPSocket conn) {
+        try {
+            conn.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    public static String getStats() {
+        StringBuilder sb = new StringBuilder();
+        hosts.forEach((key, host) -> sb.append(key).append(": ").append(host).append('\n'));
+        return sb.toString();
+    }
+
+}
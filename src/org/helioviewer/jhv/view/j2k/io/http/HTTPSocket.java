@@ -27,7 +27,9 @@ public class HTTPSocket {
 
     protected final InputStream inputStream;
 
-    protected HTTPSocket(URI uri) throws IOException {
+    private long idleSince;
+
+    HTTPSocket(URI uri) throws IOException {
         try {
             //socket = new Socket(ProxySettings.proxy);
             channel = SocketChannel.open();
@@ -50,7 +52,23 @@ public class HTTPSocket {
         }
     }
 
-    protected HTTPMessage recv() throws IOException {
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public String getHostKey() {
+        return usedHost + ':' + usedPort;
+    }
+
+    void setIdle() {
+        idleSince = System.currentTimeMillis();
+    }
+
+    long getIdleSince() {
+        return idleSince;
+    }
+
+    public HTTPMessage recv() throws IOException {
         String line = LineRead.readAsciiLine(inputStream);
         if (!"HTTP/1.1 200 OK".equals(line))
             throw new ProtocolException("Invalid HTTP response: " + line);
@@ -69,11 +87,11 @@ public class HTTPSocket {
         }
     }
 
-    protected int write(String str) throws IOException {
+    public int write(String str) throws IOException {
         return channel.write(ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8)));
     }
 
-    protected void close() throws IOException {
+    public void close() throws IOException {
         channel.close();
     }
 
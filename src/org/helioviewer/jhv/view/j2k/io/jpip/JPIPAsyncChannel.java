@@ -0,0 +1,225 @@
+package org.helioviewer.jhv.view.j2k.io.jpip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+import kdu_jni.KduException;
+
+import org.helioviewer.jhv.JHVGlobals;
+import org.helioviewer.jhv.view.j2k.io.http.HTTPMessage;
+
+/*
+ * Non-blocking transport of an open JPIP channel: requests are pipelined on a
+ * connection served by the JPIPSelector thread, responses are parsed as bytes
+ * arrive and reported to the listener of each request on that thread. Listeners
+ * must not block. The connection is opened on the first request and reopened
+ * after the server closes it.
+ */
+public class JPIPAsyncChannel implements JPIPPushParser.Target {
+
+    public interface Listener {
+
+        // called on the selector thread
+        void responseComplete(int frame, JPIPResponse res);
+
+        // the request was lost, called on the selector thread
+        void failed(int frame, Exception e);
+
+    }
+
+    private static class Request {
+
+        final int frame;
+        final Listener listener;
+        final long sendTime = System.nanoTime();
+        long roundTrip;
+
+        Request(int _frame, Listener _listener) {
+            frame = _frame;
+            listener = _listener;
+        }
+
+    }
+
+    private final String host;
+    private final int port;
+    private final String path;
+    private final String channelID;
+    private final JPIPCache cache;
+    private final JPIPSelector selector;
+    private final JPIPMetrics metrics;
+
+    private final ArrayDeque<Request> pending = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+    private final ByteBuffer readBuf = ByteBuffer.allocateDirect(256 * 1024);
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private JPIPPushParser parser;
+    private volatile boolean closed;
+
+    JPIPAsyncChannel(String _host, int _port, String _path, String _channelID, JPIPCache _cache, JPIPMetrics _metrics) throws IOException {
+        host = _host;
+        port = _port;
+        path = _path;
+        channelID = _channelID;
+        cache = _cache;
+        metrics = _metrics;
+        selector = JPIPSelector.get();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // queue a request, the response completes it instead of being pre-empted by the next one
+    public void request(String queryStr, int frame, Listener listener) {
+        selector.execute(() -> doRequest(queryStr, frame, listener));
+    }
+
+    // drops the connection and fails the requests pending on it
+    public void close() {
+        closed = true;
+        selector.execute(() -> disconnect(new IOException("JPIP channel closed")));
+    }
+
+    private void doRequest(String queryStr, int frame, Listener listener) {
+        if (closed) {
+            listener.failed(frame, new IOException("JPIP channel closed"));
+            return;
+        }
+
+        HTTPMessage req = new HTTPMessage();
+        req.setHeader("User-Agent", JHVGlobals.userAgent);
+        req.setHeader("Connection", "keep-alive");
+        req.setHeader("Cache-Control", "no-cache");
+        req.setHeader("Host", host + ':' + port);
+        String str = "GET " + path + '?' + queryStr + "&cid=" + channelID + "&wait=yes HTTP/1.1\r\n" + req + "\r\n";
+
+        pending.add(new Request(frame, listener));
+        out.add(ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8)));
+        try {
+            if (channel == null)
+                connect();
+            else if (channel.isConnected())
+                write();
+        } catch (IOException e) {
+            disconnect(e);
+        }
+    }
+
+    private void connect() throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setReceiveBufferSize(Math.max(262144 * 8, 2 * channel.socket().getReceiveBufferSize()));
+        channel.socket().setTrafficClass(0x10);
+        channel.socket().setKeepAlive(true);
+        channel.socket().setTcpNoDelay(true);
+
+        parser = new JPIPPushParser(cache, this);
+        key = channel.register(selector.getSelector(), SelectionKey.OP_CONNECT, this);
+        if (channel.connect(new InetSocketAddress(host, port)))
+            connected();
+    }
+
+    private void connected() throws IOException {
+        key.interestOps(SelectionKey.OP_READ);
+        write();
+    }
+
+    private void write() throws IOException {
+        ByteBuffer buf;
+        while ((buf = out.peek()) != null) {
+            channel.write(buf);
+            if (buf.hasRemaining())
+                break;
+            out.poll();
+        }
+        key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void read() throws KduException, IOException {
+        int read;
+        while ((read = channel.read(readBuf)) > 0) {
+            readBuf.flip();
+            parser.feed(readBuf);
+            readBuf.clear();
+            if (channel == null) // closed by the server after the last response
+                return;
+        }
+        if (read < 0) {
+            if (pending.isEmpty())
+                disconnect(null);
+            else
+                throw new EOFException("Connection closed");
+        }
+    }
+
+    // called on the selector thread
+    void handle(SelectionKey k) {
+        try {
+            if (k.isConnectable() && channel.finishConnect())
+                connected();
+            if (k.isValid() && k.isWritable())
+                write();
+            if (k.isValid() && k.isReadable())
+                read();
+        } catch (KduException | IOException | RuntimeException e) {
+            disconnect(e);
+        }
+    }
+
+    private void disconnect(Exception e) {
+        if (key != null)
+            key.cancel();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+        key = null;
+        channel = null;
+        parser = null;
+        out.clear();
+
+        Request r;
+        while ((r = pending.poll()) != null)
+            r.listener.failed(r.frame, e == null ? new EOFException("Connection closed") : e);
+    }
+
+    @Override
+    public int currentFrame() {
+        Request r = pending.peek();
+        return r == null ? 0 : r.frame;
+    }
+
+    @Override
+    public void headersParsed() {
+        Request r = pending.peek();
+        if (r != null)
+            r.roundTrip = System.nanoTime() - r.sendTime;
+    }
+
+    @Override
+    public void responseParsed(JPIPResponse res, int length, boolean close) throws ProtocolException {
+        Request r = pending.poll();
+        if (r == null)
+            throw new ProtocolException("Unexpected JPIP response");
+        metrics.response(r.roundTrip, System.nanoTime() - r.sendTime, length);
+        r.listener.responseComplete(r.frame, res);
+
+        if (close) {
+            // requests already sent are lost with the connection, they are reported as failed
+            disconnect(null);
+        }
+    }
+
+}
@@ -48,8 +48,8 @@ public class JPIPCache extends Kdu_cache {
         return stream;
     }
 
-    public void put(int frame, JPIPSegment seg) throws KduException {
-        addToKdu(frame, seg);
+    void put(int frame, int klassID, long binID, byte[] data, int offset, int length, boolean isFinal) throws KduException {
+        Add_to_databin(klassID, frame, binID, data, offset, length, isFinal, true, false);
     }
 
     public void put(int frame, JPIPStream stream) throws KduException {
@@ -57,8 +57,47 @@ public class JPIPCache extends Kdu_cache {
             addToKdu(frame, seg);
     }
 
+    // JPIP cache model of the data-bins held for the frame, for the server to send only what is missing
+    public synchronized String getModel(int frame, int maxLength) {
+        int flags = Kdu_global.KDU_CACHE_SCAN_START | Kdu_global.KDU_CACHE_SCAN_FIX_CODESTREAM;
+        int[] klassID = new int[1];
+        long[] codestreamID = {frame};
+        long[] binID = new long[1];
+        int[] binLen = new int[1];
+        boolean[] complete = new boolean[1];
+
+        StringBuilder model = new StringBuilder().append('[').append(frame).append(']');
+        try {
+            while (Scan_databins(flags, klassID, codestreamID, binID, binLen, complete, null, 0)) {
+                flags &= ~Kdu_global.KDU_CACHE_SCAN_START;
+                if (binLen[0] == 0 && !complete[0])
+                    continue;
+
+                String bin;
+                if (klassID[0] == KakaduConstants.KDU_PRECINCT_DATABIN)
+                    bin = "P" + binID[0];
+                else if (klassID[0] == KakaduConstants.KDU_TILE_HEADER_DATABIN)
+                    bin = "H" + binID[0];
+                else if (klassID[0] == KakaduConstants.KDU_MAIN_HEADER_DATABIN)
+                    bin = "Hm";
+                else
+                    continue;
+                if (!complete[0])
+                    bin += ":" + binLen[0];
+
+                if (model.length() + 1 + bin.length() > maxLength)
+                    break;
+                model.append(',').append(bin);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return model.toString();
+    }
+
+    // scanning keeps state in the cache, serialize readers
     @Nullable
-    public JPIPStream get(int frame) {
+    public synchronized JPIPStream get(int frame) {
         try {
             return scan(frame);
         } catch (Exception e) {
@@ -4,10 +4,13 @@ import java.io.File;
 import java.time.Duration;
 
 import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
+
+import kdu_jni.KduException;
 
 import org.helioviewer.jhv.JHVDirectory;
+import org.helioviewer.jhv.Settings;
 import org.helioviewer.jhv.io.FileUtils;
+import org.helioviewer.jhv.log.Log;
 
 import org.ehcache.Cache;
 import org.ehcache.PersistentCacheManager;
@@ -21,8 +24,14 @@ import org.ehcache.config.units.MemoryUnit;
 
 public class JPIPCacheManager {
 
-    private static final File levelCacheDir = new File(JHVDirectory.CACHE.getFile(), "JPIPLevel-2");
-    private static final File streamCacheDir = new File(JHVDirectory.CACHE.getFile(), "JPIPStream-2");
+    // the level cache is versioned with the stream cache, a level is only valid with its stream
+    private static final File levelCacheDir = new File(JHVDirectory.CACHE.getFile(), "JPIPLevel-3");
+    private static final File streamCacheDir = new File(JHVDirectory.CACHE.getFile(), "JPIPStream-3");
+    private static final File legacyLevelCacheDir = new File(JHVDirectory.CACHE.getFile(), "JPIPLevel-2");
+    private static final File legacyStreamCacheDir = new File(JHVDirectory.CACHE.getFile(), "JPIPStream-2");
+    private static final File segmentStoreDir = new File(JHVDirectory.CACHE.getFile(), "JPIPSegments-1");
+
+    private static JPIPSegmentStore segmentStore;
 
     private static PersistentCacheManager levelManager;
     private static PersistentCacheManager streamManager;
@@ -33,6 +42,21 @@ public class JPIPCacheManager {
     public static void init() {
         deleteDirs("JPIPLevel", "JPIPStream"); // delete old versions
 
+        long diskSize = Long.parseLong(Settings.getProperty("jpip.cache.size"));
+        if ("mapped".equals(Settings.getProperty("jpip.cache.store"))) {
+            try {
+                segmentStore = new JPIPSegmentStore(segmentStoreDir, diskSize * 1024 * 1024 * 1024);
+                if (hook == null) {
+                    hook = new Thread(JPIPCacheManager::close);
+                    Runtime.getRuntime().addShutdownHook(hook);
+                }
+                return;
+            } catch (Exception e) {
+                Log.error("Segment store initialization error, falling back to Ehcache", e);
+                segmentStore = null;
+            }
+        }
+
         ExpiryPolicy<Object, Object> expiryPolicy = ExpiryPolicyBuilder.timeToIdleExpiration(Duration.ofDays(7));
 
         levelManager = CacheManagerBuilder.newCacheManagerBuilder()
@@ -49,7 +73,8 @@ public class JPIPCacheManager {
                 .withCache("JPIPStream", CacheConfigurationBuilder
                         .newCacheConfigurationBuilder(Long.class, JPIPStream.class,
                                 ResourcePoolsBuilder.newResourcePoolsBuilder()
-                                        .disk(8, MemoryUnit.GB, true))
+                                        .disk(diskSize, MemoryUnit.GB, true))
+                        .withValueSerializer(JPIPStreamSerializer.class)
                         .withExpiry(expiryPolicy))
                 .build(true);
 
@@ -60,27 +85,98 @@ public class JPIPCacheManager {
 
         streamCache = streamManager.getCache("JPIPStream", Long.class, JPIPStream.class);
         levelCache = levelManager.getCache("JPIPLevel", Long.class, Integer.class);
+
+        if (legacyLevelCacheDir.exists() || legacyStreamCacheDir.exists()) {
+            Thread migrate = new Thread(() -> migrate(expiryPolicy), "JPIPStream migration");
+            migrate.setDaemon(true);
+            migrate.start();
+        }
     }
 
-    @Nullable
-    public static JPIPStream get(long key, int level) {
+    // copy entries persisted with Java serialization into the compact format and rebuild their levels,
+    // the legacy caches are deleted only once everything was copied, else the next start tries again
+    private static void migrate(ExpiryPolicy<Object, Object> expiryPolicy) {
+        int count = 0;
+        try (PersistentCacheManager legacyLevelManager = CacheManagerBuilder.newCacheManagerBuilder()
+                .with(CacheManagerBuilder.persistence(legacyLevelCacheDir))
+                .withCache("JPIPLevel", CacheConfigurationBuilder
+                        .newCacheConfigurationBuilder(Long.class, Integer.class,
+                                ResourcePoolsBuilder.newResourcePoolsBuilder()
+                                        .heap(10000, EntryUnit.ENTRIES)
+                                        .disk(10, MemoryUnit.MB, true))
+                        .withExpiry(expiryPolicy))
+                .build(true)) {
+            Cache<Long, Integer> legacyLevelCache = legacyLevelManager.getCache("JPIPLevel", Long.class, Integer.class);
+
+            if (legacyStreamCacheDir.exists()) {
+                try (PersistentCacheManager legacyStreamManager = CacheManagerBuilder.newCacheManagerBuilder()
+                        .with(CacheManagerBuilder.persistence(legacyStreamCacheDir))
+                        .withCache("JPIPStream", CacheConfigurationBuilder
+                                .newCacheConfigurationBuilder(Long.class, JPIPStream.class,
+                                        ResourcePoolsBuilder.newResourcePoolsBuilder()
+                                                .disk(8, MemoryUnit.GB, true))
+                                .withExpiry(expiryPolicy))
+                        .build(true)) {
+                    Cache<Long, JPIPStream> legacyStreamCache = legacyStreamManager.getCache("JPIPStream", Long.class, JPIPStream.class);
+                    for (Cache.Entry<Long, JPIPStream> entry : legacyStreamCache) {
+                        if (legacyLevelCache.containsKey(entry.getKey())) { // a stream without level is never used
+                            streamCache.putIfAbsent(entry.getKey(), entry.getValue());
+                            count++;
+                        }
+                    }
+                }
+            }
+            // levels after their streams
+            for (Cache.Entry<Long, Integer> entry : legacyLevelCache) {
+                if (streamCache.containsKey(entry.getKey()))
+                    levelCache.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+        } catch (Exception e) {
+            Log.warn("JPIPStream migration failed after " + count + " entries", e);
+            return;
+        }
+        Log.info("Migrated " + count + " JPIPStream entries");
+        deleteDirs(legacyLevelCacheDir.getName(), legacyStreamCacheDir.getName());
+    }
+
+    // feed the best stored level to the cache, returns that level or -1
+    public static int load(long key, JPIPCache cache, int frame) throws KduException {
+        int level = loadStored(key, cache, frame);
+        if (key != 0)
+            JPIPMetrics.cacheLookup(level >= 0);
+        return level;
+    }
+
+    private static int loadStored(long key, JPIPCache cache, int frame) throws KduException {
+        if (segmentStore != null)
+            return segmentStore.load(key, cache, frame);
+
         try {
             Integer clevel = levelCache.get(key);
-            if (clevel != null && clevel <= level)
-                return streamCache.get(key);
+            if (clevel != null) {
+                JPIPStream stream = streamCache.get(key);
+                if (stream != null) {
+                    cache.put(frame, stream);
+                    return clevel;
+                }
+            }
+        } catch (KduException e) {
+            throw e;
         } catch (Exception e) { // might get interrupted
             e.printStackTrace();
         }
-        return null;
+        return -1;
     }
 
     public static void put(long key, int level, @Nonnull JPIPStream stream) {
-        if (key != 0) {
+        if (key != 0 && segmentStore != null) {
+            segmentStore.put(key, level, stream);
+        } else if (key != 0) {
             try {
                 Integer clevel = levelCache.get(key);
-                if (clevel == null || clevel > level) {
-                    levelCache.put(key, level);
+                if (clevel == null || clevel > level || !streamCache.containsKey(key)) { // the stream may have been evicted
                     streamCache.put(key, stream);
+                    levelCache.put(key, level);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -98,6 +194,10 @@ public class JPIPCacheManager {
     }
 
     private static void close() {
+        if (segmentStore != null) {
+            segmentStore.close();
+            return;
+        }
         try {
             levelManager.close();
             streamManager.close();
@@ -108,6 +208,12 @@ public class JPIPCacheManager {
 
     public static void clear() {
         close();
+        if (segmentStore != null) {
+            segmentStore = null;
+            deleteDirs(segmentStoreDir.getName());
+            init();
+            return;
+        }
         try {
             levelManager.destroy();
             streamManager.destroy();
@@ -120,8 +226,12 @@ public class JPIPCacheManager {
     public static long getSize() {
         long size = 0;
         try {
-            size += FileUtils.diskUsage(levelCacheDir);
-            size += FileUtils.diskUsage(streamCacheDir);
+            if (segmentStore != null)
+                size += FileUtils.diskUsage(segmentStoreDir);
+            else {
+                size += FileUtils.diskUsage(levelCacheDir);
+                size += FileUtils.diskUsage(streamCacheDir);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,348 @@
+package org.helioviewer.jhv.view.j2k.io.jpip;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.helioviewer.jhv.log.Log;
+import org.helioviewer.jhv.threads.JHVThread;
+import org.helioviewer.jhv.view.j2k.io.http.HTTPConnectionPool;
+
+/*
+ * Transfer metrics of the JPIP path per server, published as MBeans under
+ * org.helioviewer.jhv:type=JPIP and logged every minute while there is traffic.
+ * Times and throughputs go into histograms rolling over the last five minutes,
+ * such that servers can be compared by their recent performance.
+ */
+public class JPIPMetrics {
+
+    public interface ServerMBean {
+
+        String getServer();
+
+        long getRequests();
+
+        long getBytes();
+
+        long getRetries();
+
+        // average over the rolling window
+        long getBytesPerSecond();
+
+        long getThroughputMedian();
+
+        long getRoundTripMedian();
+
+        long getRoundTrip90();
+
+        long getRoundTrip99();
+
+        long getFrameCompleteMedian();
+
+        long getFrameComplete90();
+
+    }
+
+    public interface CacheMBean {
+
+        long getHits();
+
+        long getMisses();
+
+        double getHitRatio();
+
+    }
+
+    // histogram of non-negative values over rolling time slices, four buckets per power of two
+    static class RollingHistogram {
+
+        private static final int BUCKETS = 128;
+        private static final int SLICES = 10;
+        private static final long SLICE_MILLIS = 30000;
+
+        private final long[][] counts = new long[SLICES][BUCKETS];
+        private final long[] sums = new long[SLICES];
+        private final long[] epochs = new long[SLICES];
+
+        private static int bucket(long v) {
+            if (v < 4)
+                return (int) Math.max(v, 0);
+            int e = 63 - Long.numberOfLeadingZeros(v);
+            return Math.min(BUCKETS - 1, 4 * (e - 1) + (int) ((v >>> (e - 2)) & 3));
+        }
+
+        private static long upperBound(int b) {
+            if (b < 4)
+                return b;
+            int e = (b + 1) / 4 + 1, sub = (b + 1) % 4;
+            return ((4L + sub) << (e - 2)) - 1;
+        }
+
+        private int slice(long epoch) {
+            int i = (int) (epoch % SLICES);
+            if (epochs[i] != epoch) {
+                Arrays.fill(counts[i], 0);
+                sums[i] = 0;
+                epochs[i] = epoch;
+            }
+            return i;
+        }
+
+        synchronized void add(long value) {
+            int i = slice(System.currentTimeMillis() / SLICE_MILLIS);
+            counts[i][bucket(value)]++;
+            sums[i] += value;
+        }
+
+        private boolean inWindow(int i, long epoch) {
+            return epochs[i] > epoch - SLICES;
+        }
+
+        // upper bound of the bucket of the quantile, -1 without samples in the window
+        synchronized long getQuantile(double q) {
+            long epoch = System.currentTimeMillis() / SLICE_MILLIS;
+            long[] merged = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < SLICES; i++) {
+                if (!inWindow(i, epoch))
+                    continue;
+                for (int b = 0; b < BUCKETS; b++) {
+                    merged[b] += counts[i][b];
+                    total += counts[i][b];
+                }
+            }
+            if (total == 0)
+                return -1;
+
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += merged[b];
+                if (seen >= Math.max(rank, 1))
+                    return upperBound(b);
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        // sum of the values per second over the window
+        synchronized long getRate() {
+            long now = System.currentTimeMillis();
+            long epoch = now / SLICE_MILLIS;
+            long sum = 0, oldest = epoch;
+            for (int i = 0; i < SLICES; i++) {
+                if (inWindow(i, epoch) && sums[i] != 0) {
+                    sum += sums[i];
+                    oldest = Math.min(oldest, epochs[i]);
+                }
+            }
+            long span = now - oldest * SLICE_MILLIS;
+            return span <= 0 ? 0 : sum * 1000 / span;
+        }
+
+    }
+
+    private static class Server implements ServerMBean {
+
+        private final String key;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final RollingHistogram rate = new RollingHistogram();
+        private final RollingHistogram throughput = new RollingHistogram();
+        private final RollingHistogram roundTrip = new RollingHistogram();
+        private final RollingHistogram frameComplete = new RollingHistogram();
+        private long lastLogged;
+
+        Server(String _key) {
+            key = _key;
+        }
+
+        @Override
+        public String getServer() {
+            return key;
+        }
+
+        @Override
+        public long getRequests() {
+            return requests.get();
+        }
+
+        @Override
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        @Override
+        public long getRetries() {
+            return retries.get();
+        }
+
+        @Override
+        public long getBytesPerSecond() {
+            return rate.getRate();
+        }
+
+        @Override
+        public long getThroughputMedian() {
+            return throughput.getQuantile(.5);
+        }
+
+        @Override
+        public long getRoundTripMedian() {
+            return roundTrip.getQuantile(.5);
+        }
+
+        @Override
+        public long getRoundTrip90() {
+            return roundTrip.getQuantile(.9);
+        }
+
+        @Override
+        public long getRoundTrip99() {
+            return roundTrip.getQuantile(.99);
+        }
+
+        @Override
+        public long getFrameCompleteMedian() {
+            return frameComplete.getQuantile(.5);
+        }
+
+        @Override
+        public long getFrameComplete90() {
+            return frameComplete.getQuantile(.9);
+        }
+
+        @Override
+        public String toString() {
+            return key + ": requests=" + requests + " bytes=" + bytes + " retries=" + retries +
+                    " rate=" + getBytesPerSecond() / 1024 + "KB/s throughput50=" + getThroughputMedian() / 1024 + "KB/s" +
+                    " rtt50/90/99=" + getRoundTripMedian() + '/' + getRoundTrip90() + '/' + getRoundTrip99() + "ms" +
+                    " frame50/90=" + getFrameCompleteMedian() + '/' + getFrameComplete90() + "ms";
+        }
+
+    }
+
+    private static class Cache implements CacheMBean {
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private long lastLogged;
+
+        @Override
+        public long getHits() {
+            return hits.get();
+        }
+
+        @Override
+        public long getMisses() {
+            return misses.get();
+        }
+
+        @Override
+        public double getHitRatio() {
+            long h = hits.get(), total = h + misses.get();
+            return total == 0 ? 0 : h / (double) total;
+        }
+
+        @Override
+        public String toString() {
+            return "cache: hits=" + hits + " misses=" + misses + String.format(Locale.US, " ratio=%.2f", getHitRatio());
+        }
+
+    }
+
+    // responses smaller than this say more about latency than about bandwidth
+    private static final int THROUGHPUT_MIN_BYTES = 16 * 1024;
+    private static final long LOG_PERIOD = 60;
+
+    private static final ConcurrentHashMap<String, Server> servers = new ConcurrentHashMap<>();
+    private static final Cache cache = new Cache();
+
+    static {
+        register(new StandardMBean(cache, CacheMBean.class, false), "org.helioviewer.jhv:type=JPIP,name=Cache");
+        ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(new JHVThread.NamedThreadFactory("JPIP Metrics"));
+        logger.scheduleAtFixedRate(JPIPMetrics::logSummary, LOG_PERIOD, LOG_PERIOD, TimeUnit.SECONDS);
+    }
+
+    private static void register(Object mbean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (Exception e) {
+            Log.warn("JPIPMetrics: cannot register " + name, e);
+        }
+    }
+
+    private static Server getServer(String key) {
+        return servers.computeIfAbsent(key, k -> {
+            Server server = new Server(k);
+            register(new StandardMBean(server, ServerMBean.class, false), "org.helioviewer.jhv:type=JPIP,name=Server,server=" + ObjectName.quote(k));
+            return server;
+        });
+    }
+
+    private static void logSummary() {
+        StringBuilder sb = new StringBuilder();
+        servers.values().forEach(server -> {
+            long requests = server.getRequests();
+            if (requests != server.lastLogged) {
+                server.lastLogged = requests;
+                sb.append('\n').append(server);
+            }
+        });
+        long lookups = cache.getHits() + cache.getMisses();
+        if (lookups != cache.lastLogged) {
+            cache.lastLogged = lookups;
+            sb.append('\n').append(cache);
+        }
+        if (sb.length() > 0)
+            Log.info("JPIP metrics:" + sb);
+    }
+
+    public static JPIPMetrics get(URI uri) {
+        return new JPIPMetrics(getServer(HTTPConnectionPool.getHostKey(uri)));
+    }
+
+    // recent performance of the server of the URI
+    public static ServerMBean getStats(URI uri) {
+        return getServer(HTTPConnectionPool.getHostKey(uri));
+    }
+
+    static void cacheLookup(boolean hit) {
+        (hit ? cache.hits : cache.misses).incrementAndGet();
+    }
+
+    private final Server server;
+
+    private JPIPMetrics(Server _server) {
+        server = _server;
+    }
+
+    // a response of the length started arriving after roundTrip and was complete after total, in ns
+    void response(long roundTrip, long total, long length) {
+        server.requests.incrementAndGet();
+        server.bytes.addAndGet(length);
+        server.rate.add(length);
+        server.roundTrip.add(TimeUnit.NANOSECONDS.toMillis(roundTrip));
+        if (length >= THROUGHPUT_MIN_BYTES)
+            server.throughput.add(length * 1000000000L / Math.max(1, total - roundTrip));
+    }
+
+    public void retry() {
+        server.retries.incrementAndGet();
+    }
+
+    // time from the first request of a frame until it was complete, in ns
+    public void frameComplete(long time) {
+        server.frameComplete.add(TimeUnit.NANOSECONDS.toMillis(time));
+    }
+
+}
@@ -0,0 +1,144 @@
+package org.helioviewer.jhv.view.j2k.io.jpip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+import kdu_jni.KduException;
+
+/*
+ * Parses a jpp-stream into the cache. The input is read in bulk into a reusable
+ * window from which message headers are decoded in place; data-bin bodies are
+ * assembled in a reusable array and handed directly to the cache. One instance
+ * per connection, not thread-safe.
+ */
+class JPIPParser {
+
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private int pos;
+    private int lim;
+
+    private byte[] data = new byte[WINDOW_SIZE];
+
+    private InputStream in;
+
+    // The last class identifier read
+    private int classID;
+    // The last code-stream index read
+    private long codestream;
+    // The total length in bytes of the last VBAS read
+    private int vbasLength;
+    // The first byte of the last VBAS read
+    private int vbasFstByte;
+
+    private boolean fill() throws IOException {
+        int read = in.read(window, 0, WINDOW_SIZE);
+        if (read <= 0)
+            return false;
+        pos = 0;
+        lim = read;
+        return true;
+    }
+
+    private int readByte() throws IOException {
+        if (pos == lim && !fill())
+            return -1;
+        return window[pos++] & 0xFF;
+    }
+
+    private long readVBAS() throws IOException {
+        vbasLength = 0;
+        long value = 0;
+        int c;
+        do {
+            if (vbasLength >= 9)
+                throw new ProtocolException("VBAS length not supported");
+
+            if ((c = readByte()) < 0) {
+                if (vbasLength > 0)
+                    throw new EOFException("EOF reached before completing VBAS");
+                else
+                    return -1;
+            }
+
+            value = (value << 7) | (long) (c & 0x7F);
+
+            if (vbasLength == 0)
+                vbasFstByte = c;
+            vbasLength++;
+        } while ((c & 0x80) != 0);
+
+        return value;
+    }
+
+    private void readData(int len) throws IOException {
+        if (data.length < len)
+            data = new byte[Math.max(len, 2 * data.length)];
+
+        int offset = Math.min(lim - pos, len);
+        System.arraycopy(window, pos, data, 0, offset);
+        pos += offset;
+
+        while (offset < len) { // bypass the window for the rest
+            int read = in.read(data, offset, len - offset);
+            if (read <= 0)
+                throw new EOFException("Unexpected EOF");
+            offset += read;
+        }
+    }
+
+    void readSegments(InputStream _in, JPIPResponse res, JPIPCache cache, int frame) throws KduException, IOException {
+        in = _in;
+        pos = lim = 0;
+        classID = 0;
+        codestream = 0;
+
+        try {
+            long id;
+            while ((id = readVBAS()) >= 0) {
+                if (vbasFstByte == 0) { // EOR
+                    int code = readByte();
+                    if (code < 0)
+                        throw new EOFException("EOF reached before completing EOR message");
+                    int length = (int) readVBAS();
+                    if (length > 0)
+                        readData(length);
+                    res.setStatus(code);
+                    continue;
+                }
+
+                long binID = id & ~(0x70L << ((vbasLength - 1) * 7));
+                boolean isFinal = (vbasFstByte & 0x10) != 0;
+
+                int m = (vbasFstByte & 0x7F) >> 5;
+                if (m == 0)
+                    throw new ProtocolException("Invalid Bin-ID value format");
+                if (m >= 2) {
+                    classID = (int) readVBAS();
+                    if (m > 2)
+                        codestream = readVBAS();
+                }
+
+                Integer klassID = DatabinMap.getKlass(classID);
+                if (klassID == null)
+                    throw new ProtocolException("Invalid databin classID");
+
+                int offset = (int) readVBAS();
+                int length = (int) readVBAS();
+                if (classID == JPIPConstants.EXTENDED_PRECINCT_DATA_BIN_CLASS || classID == JPIPConstants.EXTENDED_TILE_DATA_BIN_CLASS)
+                    readVBAS(); // aux, not used
+
+                if (length > 0)
+                    readData(length);
+                if (isFinal || length > 0) // avoid pointless segments
+                    cache.put(frame, klassID, binID, data, offset, length, isFinal);
+            }
+        } finally {
+            in = null;
+        }
+    }
+
+}
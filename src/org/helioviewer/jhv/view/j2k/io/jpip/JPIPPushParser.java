@@ -0,0 +1,337 @@
+package org.helioviewer.jhv.view.j2k.io.jpip;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nullable;
+
+import kdu_jni.KduException;
+
+import org.helioviewer.jhv.base.Regex;
+import org.helioviewer.jhv.view.j2k.io.http.HTTPMessage;
+
+/*
+ * Incremental counterpart of JPIPParser for non-blocking connections: bytes are
+ * fed as they arrive, HTTP framing (identity or chunked) is removed and every
+ * complete jpp-stream message is put in the cache at once. A message split
+ * between reads waits in the buffer for its remainder. One instance per
+ * connection, not thread-safe.
+ */
+class JPIPPushParser {
+
+    interface Target {
+
+        // frame of the response being parsed
+        int currentFrame();
+
+        // the headers of the response arrived
+        void headersParsed();
+
+        void responseParsed(JPIPResponse res, int length, boolean close) throws KduException, IOException;
+
+    }
+
+    private enum State {HEADERS, FIXED, CHUNK_SIZE, CHUNK_DATA, CHUNK_CRLF, CHUNK_TRAILER}
+
+    private final JPIPCache cache;
+    private final Target target;
+
+    // raw bytes from the connection
+    private byte[] in = new byte[64 * 1024];
+    private int inPos;
+    private int inLim;
+
+    // body bytes not yet parsed as messages
+    private byte[] body = new byte[64 * 1024];
+    private int bodyPos;
+    private int bodyLim;
+
+    // payload of the message being put in the cache
+    private byte[] data = new byte[64 * 1024];
+
+    private State state = State.HEADERS;
+    private int remaining;
+    private boolean close;
+    private JPIPResponse res;
+    private int length; // body bytes of the response
+
+    // message state persisting between the messages of a response
+    private int classID;
+    private long codestream;
+
+    // scratch of the message being decoded
+    private int pos;
+    private int vbasLength;
+    private int vbasFstByte;
+
+    JPIPPushParser(JPIPCache _cache, Target _target) {
+        cache = _cache;
+        target = _target;
+    }
+
+    void feed(ByteBuffer src) throws KduException, IOException {
+        int len = src.remaining();
+        if (in.length - inLim < len) {
+            System.arraycopy(in, inPos, in, 0, inLim - inPos);
+            inLim -= inPos;
+            inPos = 0;
+            if (in.length - inLim < len) {
+                byte[] grown = new byte[Math.max(inLim + len, 2 * in.length)];
+                System.arraycopy(in, 0, grown, 0, inLim);
+                in = grown;
+            }
+        }
+        src.get(in, inLim, len);
+        inLim += len;
+
+        while (step()) ;
+    }
+
+    // advance by one framing element, returns whether progress was made
+    private boolean step() throws KduException, IOException {
+        switch (state) {
+            case HEADERS:
+                return readHeaders();
+            case FIXED: {
+                int n = Math.min(remaining, inLim - inPos);
+                appendBody(n);
+                remaining -= n;
+                if (remaining == 0)
+                    endBody();
+                return n > 0 || state == State.HEADERS;
+            }
+            case CHUNK_SIZE: {
+                String line = readLine();
+                if (line == null)
+                    return false;
+                try {
+                    remaining = Integer.parseInt(line, 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid chunk length format");
+                }
+                state = remaining > 0 ? State.CHUNK_DATA : State.CHUNK_TRAILER;
+                return true;
+            }
+            case CHUNK_DATA: {
+                int n = Math.min(remaining, inLim - inPos);
+                appendBody(n);
+                remaining -= n;
+                if (remaining == 0)
+                    state = State.CHUNK_CRLF;
+                return n > 0;
+            }
+            case CHUNK_CRLF: {
+                String line = readLine();
+                if (line == null)
+                    return false;
+                state = State.CHUNK_SIZE;
+                return true;
+            }
+            case CHUNK_TRAILER: {
+                String line = readLine();
+                if (line == null)
+                    return false;
+                endBody();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    private String readLine() {
+        for (int i = inPos; i + 1 < inLim; i++) {
+            if (in[i] == '\r' && in[i + 1] == '\n') {
+                String line = new String(in, inPos, i - inPos, StandardCharsets.US_ASCII);
+                inPos = i + 2;
+                return line;
+            }
+        }
+        return null;
+    }
+
+    private boolean readHeaders() throws IOException {
+        int end = -1;
+        for (int i = inPos; i + 3 < inLim; i++) {
+            if (in[i] == '\r' && in[i + 1] == '\n' && in[i + 2] == '\r' && in[i + 3] == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0)
+            return false;
+
+        String line = readLine();
+        if (!"HTTP/1.1 200 OK".equals(line))
+            throw new ProtocolException("Invalid HTTP response: " + line);
+
+        HTTPMessage msg = new HTTPMessage();
+        while (!(line = readLine()).isEmpty()) {
+            String[] parts = Regex.HttpField.split(line);
+            if (parts.length != 2)
+                throw new ProtocolException("Invalid HTTP header field: " + line);
+            msg.setHeader(parts[0], parts[1]);
+        }
+
+        if (!"image/jpp-stream".equals(msg.getHeader("Content-Type")))
+            throw new IOException("Expected image/jpp-stream content");
+        String encoding = msg.getHeader("Content-Encoding");
+        if (encoding != null && !"identity".equalsIgnoreCase(encoding))
+            throw new IOException("Unexpected content encoding: " + encoding);
+
+        res = new JPIPResponse(msg.getHeader("JPIP-cnew"));
+        close = "close".equals(msg.getHeader("Connection"));
+        bodyPos = bodyLim = 0;
+        length = 0;
+        classID = 0; // as the blocking parser, nothing carries over between responses
+        codestream = 0;
+        target.headersParsed();
+
+        String head = msg.getHeader("Transfer-Encoding");
+        String transferEncoding = head == null ? "" : head.toLowerCase();
+        switch (transferEncoding) {
+            case "":
+            case "identity":
+                String contentLength = msg.getHeader("Content-Length");
+                try {
+                    remaining = Integer.parseInt(contentLength);
+                } catch (Exception e) {
+                    throw new IOException("Invalid Content-Length header: " + contentLength);
+                }
+                state = State.FIXED;
+                break;
+            case "chunked":
+                state = State.CHUNK_SIZE;
+                break;
+            default:
+                throw new IOException("Unsupported transfer encoding: " + transferEncoding);
+        }
+        return true;
+    }
+
+    private void appendBody(int n) throws KduException, IOException {
+        if (n == 0)
+            return;
+        if (body.length - bodyLim < n) {
+            System.arraycopy(body, bodyPos, body, 0, bodyLim - bodyPos);
+            bodyLim -= bodyPos;
+            bodyPos = 0;
+            if (body.length - bodyLim < n) {
+                byte[] grown = new byte[Math.max(bodyLim + n, 2 * body.length)];
+                System.arraycopy(body, 0, grown, 0, bodyLim);
+                body = grown;
+            }
+        }
+        System.arraycopy(in, inPos, body, bodyLim, n);
+        inPos += n;
+        bodyLim += n;
+        length += n;
+
+        while (parseMessage()) ;
+    }
+
+    private void endBody() throws KduException, IOException {
+        while (parseMessage()) ;
+        if (bodyPos != bodyLim)
+            throw new ProtocolException("Incomplete jpp-stream message");
+
+        state = State.HEADERS;
+        JPIPResponse done = res;
+        res = null;
+        target.responseParsed(done, length, close);
+    }
+
+    private long readVBAS() throws ProtocolException {
+        vbasLength = 0;
+        long value = 0;
+        int c;
+        do {
+            if (vbasLength >= 9)
+                throw new ProtocolException("VBAS length not supported");
+            if (pos == bodyLim)
+                return -1;
+
+            c = body[pos++] & 0xFF;
+            value = (value << 7) | (long) (c & 0x7F);
+            if (vbasLength == 0)
+                vbasFstByte = c;
+            vbasLength++;
+        } while ((c & 0x80) != 0);
+        return value;
+    }
+
+    // decode one complete message from the body, returns false if more bytes are needed
+    private boolean parseMessage() throws KduException, ProtocolException {
+        pos = bodyPos;
+
+        long id = readVBAS();
+        if (id < 0)
+            return false;
+
+        if (vbasFstByte == 0) { // EOR
+            if (pos == bodyLim)
+                return false;
+            int code = body[pos++] & 0xFF;
+            long length = readVBAS();
+            if (length < 0 || bodyLim - pos < length)
+                return false;
+            pos += (int) length;
+            res.setStatus(code);
+            bodyPos = pos;
+            return true;
+        }
+
+        long binID = id & ~(0x70L << ((vbasLength - 1) * 7));
+        boolean isFinal = (vbasFstByte & 0x10) != 0;
+
+        int m = (vbasFstByte & 0x7F) >> 5;
+        if (m == 0)
+            throw new ProtocolException("Invalid Bin-ID value format");
+
+        int msgClassID = classID;
+        long msgCodestream = codestream;
+        if (m >= 2) {
+            long v = readVBAS();
+            if (v < 0)
+                return false;
+            msgClassID = (int) v;
+            if (m > 2) {
+                if ((v = readVBAS()) < 0)
+                    return false;
+                msgCodestream = v;
+            }
+        }
+
+        Integer klassID = DatabinMap.getKlass(msgClassID);
+        if (klassID == null)
+            throw new ProtocolException("Invalid databin classID");
+
+        long offset = readVBAS();
+        if (offset < 0)
+            return false;
+        long length = readVBAS();
+        if (length < 0)
+            return false;
+        if (msgClassID == JPIPConstants.EXTENDED_PRECINCT_DATA_BIN_CLASS || msgClassID == JPIPConstants.EXTENDED_TILE_DATA_BIN_CLASS) {
+            if (readVBAS() < 0) // aux, not used
+                return false;
+        }
+        if (bodyLim - pos < length)
+            return false;
+
+        if (isFinal || length > 0) { // avoid pointless segments
+            if (data.length < length)
+                data = new byte[Math.max((int) length, 2 * data.length)];
+            System.arraycopy(body, pos, data, 0, (int) length);
+            cache.put(target.currentFrame(), klassID, binID, data, (int) offset, (int) length, isFinal);
+        }
+
+        classID = msgClassID;
+        codestream = msgCodestream;
+        bodyPos = pos + (int) length;
+        return true;
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.helioviewer.jhv.view.j2k.io.jpip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.annotation.Nullable;
+
+/*
+ * Recorded JPIP exchanges for JPIPReplayServer: the jpp-stream body and the
+ * JPIP-cnew header of each response, under the normalized request. A request
+ * recorded several times is answered by its responses in order, the last one
+ * repeats. While recording, exchanges are appended to the file as they come.
+ */
+class JPIPRecording {
+
+    private static final int MAGIC = 0x4A505252; // JPRR
+    private static final int VERSION = 1;
+
+    static class Exchange {
+
+        @Nullable
+        final String cnew;
+        final byte[] body;
+
+        Exchange(@Nullable String _cnew, byte[] _body) {
+            cnew = _cnew;
+            body = _body;
+        }
+
+    }
+
+    private final HashMap<String, ArrayList<Exchange>> exchanges = new HashMap<>();
+    private final HashMap<String, Integer> cursors = new HashMap<>();
+    @Nullable
+    private DataOutputStream out;
+    private int size;
+
+    private JPIPRecording() {
+    }
+
+    static JPIPRecording read(File file) throws IOException {
+        JPIPRecording recording = new JPIPRecording();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a JPIP recording: " + file);
+            while (true) {
+                String key;
+                try {
+                    key = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                String cnew = in.readUTF();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                recording.put(key, new Exchange(cnew.isEmpty() ? null : cnew, body));
+            }
+        }
+        return recording;
+    }
+
+    static JPIPRecording write(File file) throws IOException {
+        JPIPRecording recording = new JPIPRecording();
+        recording.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        recording.out.writeInt(MAGIC);
+        recording.out.writeInt(VERSION);
+        recording.out.flush();
+        return recording;
+    }
+
+    private void put(String key, Exchange exchange) {
+        exchanges.computeIfAbsent(key, k -> new ArrayList<>()).add(exchange);
+        size++;
+    }
+
+    synchronized void add(String key, @Nullable String cnew, byte[] body) throws IOException {
+        put(key, new Exchange(cnew, body));
+        if (out != null) {
+            out.writeUTF(key);
+            out.writeUTF(cnew == null ? "" : cnew);
+            out.writeInt(body.length);
+            out.write(body);
+            out.flush();
+        }
+    }
+
+    // the response to the request, without consuming it
+    @Nullable
+    synchronized Exchange peek(String key) {
+        ArrayList<Exchange> list = exchanges.get(key);
+        if (list == null)
+            return null;
+        return list.get(Math.min(cursors.getOrDefault(key, 0), list.size() - 1));
+    }
+
+    // the response was delivered, the next request gets the following one
+    synchronized void advance(String key) {
+        cursors.merge(key, 1, Integer::sum);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignore) {
+            }
+            out = null;
+        }
+    }
+
+}
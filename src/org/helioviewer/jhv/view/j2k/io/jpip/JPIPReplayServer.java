@@ -0,0 +1,508 @@
+package org.helioviewer.jhv.view.j2k.io.jpip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.helioviewer.jhv.JHVGlobals;
+import org.helioviewer.jhv.base.Regex;
+import org.helioviewer.jhv.log.Log;
+import org.helioviewer.jhv.threads.JHVThread;
+import org.helioviewer.jhv.view.j2k.io.ChunkedInputStream;
+import org.helioviewer.jhv.view.j2k.io.FixedSizedInputStream;
+import org.helioviewer.jhv.view.j2k.io.LineRead;
+import org.helioviewer.jhv.view.j2k.io.TransferInputStream;
+import org.helioviewer.jhv.view.j2k.io.http.HTTPConnectionPool;
+import org.helioviewer.jhv.view.j2k.io.http.HTTPMessage;
+import org.helioviewer.jhv.view.j2k.io.http.HTTPSocket;
+
+/*
+ * JPIP server on the loopback interface for reproducible streaming benchmarks.
+ * In replay mode it answers requests with the jpp-streams of a JPIPRecording,
+ * matched on the request without cid, model and wait; in record mode it relays
+ * requests to an upstream server and records its responses. Responses are
+ * delayed by a latency from the arrival of their request and paced by a
+ * bandwidth shared by all connections; in replay mode a seeded generator
+ * injects HTTP errors, connections dropped mid-response and closed connections.
+ */
+public class JPIPReplayServer {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final Pattern cidPattern = Pattern.compile("cid=([^,]*)");
+
+    private static class Request {
+
+        final long time;
+        final String uri;
+        final HTTPMessage headers;
+        boolean close;
+
+        Request(long _time, String _uri, HTTPMessage _headers) {
+            time = _time;
+            uri = _uri;
+            headers = _headers;
+        }
+
+    }
+
+    private static final Request END = new Request(0, "", new HTTPMessage());
+
+    private final JPIPRecording recording;
+    @Nullable
+    private final URI upstream;
+    private final ServerSocket server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new JHVThread.NamedThreadFactory("JPIP Replay"));
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    // image requested by the cnew of each channel
+    private final ConcurrentHashMap<String, String> channelTargets = new ConcurrentHashMap<>();
+    private final AtomicInteger channelCount = new AtomicInteger();
+
+    private volatile long latency; // ms
+    private volatile long bandwidth; // bytes/s, 0 for unlimited
+    private volatile double errorRate;
+    private volatile double dropRate;
+    private volatile double closeRate;
+    private Random random = new Random(0);
+    private long linkFree; // time when the simulated link has sent the bytes queued so far
+
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+    private final AtomicLong closes = new AtomicLong();
+
+    private JPIPReplayServer(JPIPRecording _recording, @Nullable URI _upstream, int port) throws IOException {
+        recording = _recording;
+        upstream = _upstream;
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    // serve the recording, port 0 for any free port
+    public static JPIPReplayServer replay(File file, int port) throws IOException {
+        return new JPIPReplayServer(JPIPRecording.read(file), null, port);
+    }
+
+    // relay to the upstream server and record its responses to the file
+    public static JPIPReplayServer record(File file, URI upstream, int port) throws IOException {
+        return new JPIPReplayServer(JPIPRecording.write(file), upstream, port);
+    }
+
+    public void setLatency(long millis) {
+        latency = millis;
+    }
+
+    public void setBandwidth(long bytesPerSecond) {
+        bandwidth = bytesPerSecond;
+    }
+
+    // probabilities per response of an HTTP error, of a connection dropped
+    // in the middle of the response and of a connection closed after it
+    public synchronized void setFaults(double error, double drop, double close, long seed) {
+        errorRate = error;
+        dropRate = drop;
+        closeRate = close;
+        random = new Random(seed);
+    }
+
+    // the address under which the server serves the image of the path
+    public URI getURI(String path) {
+        return URI.create("jpip://" + server.getInetAddress().getHostAddress() + ':' + server.getLocalPort() + (path.startsWith("/") ? "" : "/") + path);
+    }
+
+    public String getStats() {
+        return "responses=" + responses + " bytes=" + bytes + " misses=" + misses + " errors=" + errors + " drops=" + drops + " closes=" + closes;
+    }
+
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException ignore) {
+        }
+        for (Socket socket : sockets)
+            closeSocket(socket);
+        executor.shutdownNow();
+        recording.close();
+        Log.info("JPIPReplayServer: " + getStats());
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!server.isClosed())
+                    Log.warn("JPIPReplayServer accept", e);
+            }
+        }
+    }
+
+    private void closeSocket(Socket socket) {
+        sockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    // reads the requests of a connection, the responses are written by another thread
+    private void serve(Socket socket) {
+        LinkedBlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+        executor.execute(() -> respond(socket, requests));
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            while (true) {
+                in.mark(1);
+                if (in.read() < 0)
+                    break;
+                in.reset();
+
+                String[] parts = Regex.Space.split(LineRead.readAsciiLine(in));
+                if (parts.length != 3 || !"GET".equals(parts[0]))
+                    break;
+                long time = System.nanoTime();
+
+                HTTPMessage headers = new HTTPMessage();
+                String line;
+                while (!(line = LineRead.readAsciiLine(in)).isEmpty()) {
+                    String[] field = Regex.HttpField.split(line);
+                    if (field.length == 2)
+                        headers.setHeader(field[0], field[1]);
+                }
+                requests.add(new Request(time, parts[1], headers));
+            }
+        } catch (IOException ignore) { // closed
+        } finally {
+            requests.add(END);
+        }
+    }
+
+    private void respond(Socket socket, LinkedBlockingQueue<Request> requests) {
+        try (OutputStream out = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 64)) {
+            while (true) {
+                Request req = requests.take();
+                if (req == END)
+                    break;
+
+                long wait = req.time + latency * 1000000L - System.nanoTime();
+                if (wait > 0)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                if (!respond(req, out))
+                    break;
+            }
+        } catch (InterruptedException ignore) {
+        } catch (IOException e) {
+            if (!server.isClosed())
+                Log.warn("JPIPReplayServer: " + e.getMessage());
+        } finally {
+            closeSocket(socket);
+        }
+    }
+
+    // returns whether the connection stays open
+    private boolean respond(Request req, OutputStream out) throws IOException, InterruptedException {
+        int q = req.uri.indexOf('?');
+        String path = q < 0 ? req.uri : req.uri.substring(0, q);
+        LinkedHashMap<String, String> params = parseQuery(q < 0 ? "" : req.uri.substring(q + 1));
+
+        String cclose = params.get("cclose");
+        if (cclose != null) {
+            channelTargets.remove(cclose);
+            if (upstream != null) {
+                try {
+                    forward(req);
+                } catch (IOException ignore) { // upstream may have closed the channel already
+                }
+            }
+            writeResponse(out, null, new byte[0], false, false);
+            return true;
+        }
+
+        String cid = params.get("cid");
+        String target = cid == null ? path : channelTargets.getOrDefault(cid, path);
+        String key = target + '?' + normalize(params);
+
+        if (upstream == null && chance(errorRate)) {
+            errors.incrementAndGet();
+            writeError(out, "503 Service Unavailable");
+            return false;
+        }
+
+        String cnew;
+        byte[] body;
+        if (upstream == null) {
+            JPIPRecording.Exchange exchange = recording.peek(key);
+            if (exchange == null) {
+                misses.incrementAndGet();
+                Log.warn("JPIPReplayServer: not recorded " + key);
+                writeError(out, "404 Not Found");
+                return false;
+            }
+            cnew = exchange.cnew;
+            body = exchange.body;
+        } else {
+            JPIPRecording.Exchange exchange;
+            try {
+                exchange = forward(req);
+            } catch (IOException e) {
+                Log.warn("JPIPReplayServer: upstream " + e.getMessage());
+                writeError(out, "502 Bad Gateway");
+                return false;
+            }
+            recording.add(key, exchange.cnew, exchange.body);
+            cnew = exchange.cnew;
+            body = exchange.body;
+        }
+
+        if (cnew != null) {
+            Matcher m = cidPattern.matcher(cnew);
+            String channel;
+            if (upstream != null)
+                channel = m.find() ? m.group(1) : "";
+            else {
+                channel = "R" + channelCount.incrementAndGet();
+                cnew = m.replaceFirst("cid=" + channel);
+            }
+            channelTargets.put(channel, target);
+        }
+
+        boolean drop = upstream == null && chance(dropRate);
+        boolean close = !drop && (req.close || (upstream == null && chance(closeRate)));
+        writeResponse(out, cnew, body, close, drop);
+        if (drop) {
+            drops.incrementAndGet();
+            return false;
+        }
+
+        responses.incrementAndGet();
+        if (upstream == null)
+            recording.advance(key);
+        if (close)
+            closes.incrementAndGet();
+        return !close;
+    }
+
+    private synchronized boolean chance(double rate) {
+        return rate > 0 && random.nextDouble() < rate;
+    }
+
+    // wait until the simulated link would have sent the bytes
+    private void throttle(int len) throws InterruptedException {
+        long bw = bandwidth;
+        if (bw <= 0)
+            return;
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            linkFree = Math.max(linkFree, now) + len * 1000000000L / bw;
+            wait = linkFree - now;
+        }
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    private void writeResponse(OutputStream out, @Nullable String cnew, byte[] body, boolean close, boolean drop) throws IOException, InterruptedException {
+        HTTPMessage res = new HTTPMessage();
+        res.setHeader("Content-Type", "image/jpp-stream");
+        res.setHeader("Transfer-Encoding", "chunked");
+        res.setHeader("Cache-Control", "no-cache");
+        if (cnew != null)
+            res.setHeader("JPIP-cnew", cnew);
+        if (close)
+            res.setHeader("Connection", "close");
+        out.write(("HTTP/1.1 200 OK\r\n" + res + "\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        int end = drop ? body.length / 2 : body.length;
+        for (int off = 0; off < end; off += CHUNK_SIZE) {
+            int len = Math.min(CHUNK_SIZE, end - off);
+            throttle(len);
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(body, off, len);
+            out.write(CRLF);
+            out.flush();
+            bytes.addAndGet(len);
+        }
+        if (!drop)
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static void writeError(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    // relay the request upstream, the connection is closed if the upstream closes its own
+    private JPIPRecording.Exchange forward(Request req) throws IOException {
+        HTTPSocket conn = HTTPConnectionPool.lease(upstream, false);
+        boolean reusable = false;
+        boolean failed = true;
+        try {
+            HTTPMessage msg = new HTTPMessage();
+            String userAgent = req.headers.getHeader("User-Agent");
+            msg.setHeader("User-Agent", userAgent == null ? JHVGlobals.userAgent : userAgent);
+            msg.setHeader("Connection", "keep-alive");
+            msg.setHeader("Cache-Control", "no-cache");
+            msg.setHeader("Host", conn.getHostKey());
+            conn.write("GET " + req.uri + " HTTP/1.1\r\n" + msg + "\r\n");
+
+            HTTPMessage res = conn.recv();
+            String encoding = res.getHeader("Content-Encoding");
+            if (encoding != null && !"identity".equalsIgnoreCase(encoding))
+                throw new IOException("Unexpected content encoding: " + encoding);
+
+            byte[] body;
+            try (TransferInputStream in = openBody(conn.getInputStream(), res)) {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                byte[] b = new byte[CHUNK_SIZE];
+                int n;
+                while ((n = in.read(b)) >= 0)
+                    buf.write(b, 0, n);
+                body = buf.toByteArray();
+            }
+
+            req.close = "close".equals(res.getHeader("Connection"));
+            reusable = !req.close;
+            failed = false;
+            return new JPIPRecording.Exchange(res.getHeader("JPIP-cnew"), body);
+        } finally {
+            if (reusable)
+                HTTPConnectionPool.release(conn);
+            else
+                HTTPConnectionPool.discard(conn, failed);
+        }
+    }
+
+    private static TransferInputStream openBody(InputStream in, HTTPMessage res) throws IOException {
+        String head = res.getHeader("Transfer-Encoding");
+        String transferEncoding = head == null ? "" : head.toLowerCase();
+        switch (transferEncoding) {
+            case "":
+            case "identity":
+                String contentLength = res.getHeader("Content-Length");
+                try {
+                    return new FixedSizedInputStream(in, Integer.parseInt(contentLength));
+                } catch (Exception e) {
+                    throw new IOException("Invalid Content-Length header: " + contentLength);
+                }
+            case "chunked":
+                return new ChunkedInputStream(in);
+            default:
+                throw new IOException("Unsupported transfer encoding: " + transferEncoding);
+        }
+    }
+
+    private static LinkedHashMap<String, String> parseQuery(String query) {
+        LinkedHashMap<String, String> params = new LinkedHashMap<>();
+        for (String param : query.split("&")) {
+            if (param.isEmpty())
+                continue;
+            int eq = param.indexOf('=');
+            if (eq < 0)
+                params.put(param, "");
+            else
+                params.put(param.substring(0, eq), param.substring(eq + 1));
+        }
+        return params;
+    }
+
+    // the request fields that select the response, the cache model is left out
+    // as the responses of the recording already follow each other
+    private static String normalize(LinkedHashMap<String, String> params) {
+        StringBuilder buf = new StringBuilder();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            String name = param.getKey();
+            if ("cid".equals(name) || "wait".equals(name) || "model".equals(name))
+                continue;
+            if (buf.length() > 0)
+                buf.append('&');
+            buf.append(name).append('=').append(param.getValue());
+        }
+        return buf.toString();
+    }
+
+    // replay <recording> [port] | record <recording> <upstream> [port], followed by
+    // -latency ms, -bandwidth bytes/s, -error p, -drop p, -close p, -seed n
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !("replay".equals(args[0]) || "record".equals(args[0]) && args.length >= 3)) {
+            System.out.println("Usage: JPIPReplayServer replay <recording> [port] | record <recording> <upstream> [port] [options]\n" +
+                    "Options: -latency ms -bandwidth bytes/s -error p -drop p -close p -seed n");
+            return;
+        }
+
+        boolean record = "record".equals(args[0]);
+        int pos = record ? 3 : 2;
+        int port = 0;
+        if (args.length > pos && !args[pos].startsWith("-"))
+            port = Integer.parseInt(args[pos++]);
+
+        long latency = 0, bandwidth = 0, seed = 0;
+        double error = 0, drop = 0, close = 0;
+        for (; pos + 1 < args.length; pos += 2) {
+            String val = args[pos + 1];
+            switch (args[pos]) {
+                case "-latency":
+                    latency = Long.parseLong(val);
+                    break;
+                case "-bandwidth":
+                    bandwidth = Long.parseLong(val);
+                    break;
+                case "-error":
+                    error = Double.parseDouble(val);
+                    break;
+                case "-drop":
+                    drop = Double.parseDouble(val);
+                    break;
+                case "-close":
+                    close = Double.parseDouble(val);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(val);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[pos]);
+            }
+        }
+
+        JPIPReplayServer server = record ? record(new File(args[1]), new URI(args[2]), port) : replay(new File(args[1]), port);
+        server.setLatency(latency);
+        server.setBandwidth(bandwidth);
+        server.setFaults(error, drop, close, seed);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+
+        System.out.println((record ? "Recording " + args[2] : "Replaying " + server.recording.size() + " responses") + " at " + server.getURI("/"));
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+}
@@ -0,0 +1,482 @@
+package org.helioviewer.jhv.view.j2k.io.jpip;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import kdu_jni.KduException;
+
+import org.helioviewer.jhv.JHVGlobals;
+import org.helioviewer.jhv.log.Log;
+
+/*
+ * Persistent stream store made of one append-only file per source (the upper half
+ * of the cache key). A record is [magic, key, level, length] followed by the stream
+ * in the JPIPStreamSerializer layout. The records of a frame form a chain of
+ * increments: a finer level only appends the data-bins not already stored. The
+ * index of a file is rebuilt from the record headers alone on first use; hits map
+ * the records and feed them to the cache without building segment objects.
+ * Chains are merged by compaction and the least recently used sources are evicted
+ * when the store exceeds its budget, both in the background.
+ */
+class JPIPSegmentStore {
+
+    private static final int MAGIC = 0x4A505053;
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+    private static final String SUFFIX = ".jpps";
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private static final long COMPACT_MIN_DEAD = 16 * 1024 * 1024;
+    private static final long EXPIRY = TimeUnit.DAYS.toMillis(7);
+    private static final int MAINTENANCE_PERIOD = 60;
+
+    private static class Record {
+
+        final long position;
+        final int level;
+        final int length;
+        // the coarser increment this one refines
+        @Nullable
+        final Record previous;
+
+        Record(long _position, int _level, int _length, @Nullable Record _previous) {
+            position = _position;
+            level = _level;
+            length = _length;
+            previous = _previous;
+        }
+
+    }
+
+    private final JPIPStreamSerializer serializer = new JPIPStreamSerializer(null);
+
+    private class Source {
+
+        final File file;
+        private FileChannel channel;
+        private HashMap<Long, Record> index;
+        private long size;
+        // bytes in chained increments, recovered by merging
+        private long dead;
+        private boolean deleted;
+        volatile long lastAccess;
+
+        Source(File _file) {
+            file = _file;
+            size = file.length();
+            lastAccess = file.exists() ? file.lastModified() : System.currentTimeMillis(); // new sources are not expired
+        }
+
+        private void open() throws IOException {
+            if (channel != null)
+                return;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index = new HashMap<>();
+            dead = 0;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long end = channel.size();
+            long pos = 0;
+            while (pos + HEADER_SIZE <= end) {
+                header.clear();
+                readFully(channel, header, pos);
+                header.flip();
+                if (header.getInt() != MAGIC)
+                    break;
+                long key = header.getLong();
+                int level = header.getInt();
+                int length = header.getInt();
+                if (length < 0 || pos + HEADER_SIZE + length > end) // torn append
+                    break;
+
+                Record old = index.get(key);
+                index.put(key, new Record(pos + HEADER_SIZE, level, length, old));
+                if (old != null)
+                    dead += HEADER_SIZE + old.length;
+                pos += HEADER_SIZE + length;
+            }
+            if (pos < end) {
+                Log.warn("Truncating " + file + " at " + pos + " of " + end + " bytes");
+                channel.truncate(pos);
+            }
+            totalSize.addAndGet(pos - size);
+            size = pos;
+        }
+
+        private MappedByteBuffer map(Record record) throws IOException {
+            return mapRecord(channel, record);
+        }
+
+        // mappings of the chain of the best stored level, coarsest first
+        @Nullable
+        synchronized ArrayDeque<MappedByteBuffer> map(long key, int[] level) throws IOException {
+            if (deleted)
+                return null;
+            open();
+
+            Record record = index.get(key);
+            if (record == null)
+                return null;
+            level[0] = record.level;
+            ArrayDeque<MappedByteBuffer> chain = new ArrayDeque<>();
+            for (; record != null; record = record.previous)
+                chain.push(map(record));
+            lastAccess = System.currentTimeMillis();
+            return chain;
+        }
+
+        synchronized void append(long key, int level, JPIPStream stream) throws IOException {
+            if (deleted)
+                return;
+            open();
+
+            Record old = index.get(key);
+            if (old != null && old.level <= level)
+                return;
+
+            JPIPStream increment = stream;
+            if (old != null) {
+                HashMap<Long, Integer> bins = new HashMap<>();
+                for (Record record = old; record != null; record = record.previous)
+                    JPIPStreamSerializer.readBins(map(record), bins);
+
+                increment = new JPIPStream();
+                for (JPIPSegment seg : stream.segments) {
+                    Integer stored = bins.get(JPIPStreamSerializer.binKey(seg.klassID, seg.binID));
+                    if (stored == null || stored < seg.length || (seg.isFinal && stored != Integer.MAX_VALUE))
+                        increment.segments.add(seg);
+                }
+            }
+
+            ByteBuffer payload = serializer.serialize(increment);
+            int length = payload.remaining();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putLong(key).putInt(level).putInt(length);
+            header.flip();
+
+            long pos = size;
+            writeFully(channel, header, pos);
+            writeFully(channel, payload, pos + HEADER_SIZE);
+
+            index.put(key, new Record(pos + HEADER_SIZE, level, length, old));
+            if (old != null)
+                dead += HEADER_SIZE + old.length;
+            size = pos + HEADER_SIZE + length;
+            totalSize.addAndGet(HEADER_SIZE + length);
+            lastAccess = System.currentTimeMillis();
+        }
+
+        private void writeRecord(FileChannel out, ByteBuffer header, long key, int level, int length, long pos) throws IOException {
+            header.clear();
+            header.putInt(MAGIC).putLong(key).putInt(level).putInt(length);
+            header.flip();
+            writeFully(out, header, pos);
+        }
+
+        // rewrite each chain as a single record into a new file and swap it in; the bulk is
+        // copied outside the lock, records appended meanwhile are added while swapping
+        void compact() throws IOException {
+            HashMap<Long, Record> snapshot;
+            FileChannel in;
+            synchronized (this) {
+                if (deleted || channel == null || dead < COMPACT_MIN_DEAD || dead < size / 2)
+                    return;
+                snapshot = new HashMap<>(index);
+                in = channel;
+            }
+
+            File tmp = new File(file.getPath() + COMPACT_SUFFIX);
+            HashMap<Long, Record> newIndex = new HashMap<>();
+            try {
+                FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                try {
+                    long pos = writeChains(in, out, snapshot, newIndex, 0);
+                    synchronized (this) {
+                        if (deleted || channel != in) { // closed meanwhile
+                            out.close();
+                            Files.deleteIfExists(tmp.toPath());
+                            return;
+                        }
+
+                        HashMap<Long, Record> appended = new HashMap<>();
+                        long newDead = 0;
+                        for (Map.Entry<Long, Record> entry : index.entrySet()) {
+                            if (snapshot.get(entry.getKey()) != entry.getValue()) {
+                                appended.put(entry.getKey(), entry.getValue());
+                                Record copied = newIndex.get(entry.getKey());
+                                if (copied != null)
+                                    newDead += HEADER_SIZE + copied.length;
+                            }
+                        }
+                        pos = writeChains(in, out, appended, newIndex, pos);
+                        out.close();
+                        swap(tmp, newIndex, newDead, pos);
+                    }
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(tmp.toPath());
+                throw e;
+            }
+        }
+
+        // write each chain of records as a single record at pos, returns the end
+        private long writeChains(FileChannel in, FileChannel out, HashMap<Long, Record> records, HashMap<Long, Record> newIndex, long pos) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            for (Map.Entry<Long, Record> entry : records.entrySet()) {
+                Record record = entry.getValue();
+                long key = entry.getKey();
+                int length;
+
+                if (record.previous == null) {
+                    length = record.length;
+                    writeRecord(out, header, key, record.level, length, pos);
+
+                    long from = record.position;
+                    long to = pos + HEADER_SIZE;
+                    long end = from + length;
+                    while (from < end) {
+                        long n = in.transferTo(from, end - from, out.position(to));
+                        from += n;
+                        to += n;
+                    }
+                } else {
+                    ArrayDeque<Record> chain = new ArrayDeque<>();
+                    for (Record r = record; r != null; r = r.previous)
+                        chain.push(r);
+                    LinkedHashMap<Long, JPIPSegment> merged = new LinkedHashMap<>();
+                    for (Record r : chain) {
+                        for (JPIPSegment seg : serializer.read(mapRecord(in, r)).segments)
+                            merged.put(JPIPStreamSerializer.binKey(seg.klassID, seg.binID), seg);
+                    }
+                    JPIPStream stream = new JPIPStream();
+                    stream.segments.addAll(merged.values());
+
+                    ByteBuffer payload = serializer.serialize(stream);
+                    length = payload.remaining();
+                    writeRecord(out, header, key, record.level, length, pos);
+                    writeFully(out, payload, pos + HEADER_SIZE);
+                }
+                newIndex.put(key, new Record(pos + HEADER_SIZE, record.level, length, null));
+                pos += HEADER_SIZE + length;
+            }
+            return pos;
+        }
+
+        private void swap(File tmp, HashMap<Long, Record> newIndex, long newDead, long newSize) throws IOException {
+            channel.close();
+            channel = null;
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) { // may fail while old mappings are alive, keep the old file
+                Files.deleteIfExists(tmp.toPath());
+                open();
+                throw e;
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index = newIndex;
+            dead = newDead;
+            totalSize.addAndGet(newSize - size);
+            size = newSize;
+        }
+
+        // the bytes stay counted until the file is gone, a failed delete is retried by maintain()
+        synchronized boolean delete() {
+            deleted = true;
+            close();
+            if (file.delete() || !file.exists()) {
+                totalSize.addAndGet(-size);
+                size = 0;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                channel = null;
+                index = null;
+                file.setLastModified(lastAccess); // remember for eviction
+            }
+        }
+
+        synchronized long getSize() {
+            return size;
+        }
+
+    }
+
+    private final File dir;
+    private final long budget;
+    private final ConcurrentHashMap<Long, Source> sources = new ConcurrentHashMap<>();
+    private final AtomicLong totalSize = new AtomicLong();
+    // evicted sources whose file could not be deleted yet, such as while still mapped; maintain() only
+    private final ArrayList<Source> undeleted = new ArrayList<>();
+    private final ScheduledFuture<?> maintenance;
+
+    JPIPSegmentStore(File _dir, long _budget) throws IOException {
+        dir = _dir;
+        budget = _budget;
+        Files.createDirectories(dir.toPath());
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(COMPACT_SUFFIX)) { // interrupted compaction
+                    file.delete();
+                    continue;
+                }
+                if (!name.endsWith(SUFFIX))
+                    continue;
+                try {
+                    long sourceId = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                    Source source = new Source(file);
+                    sources.put(sourceId, source);
+                    totalSize.addAndGet(source.getSize());
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        maintenance = JHVGlobals.getReaperService().scheduleWithFixedDelay(this::maintain, MAINTENANCE_PERIOD, MAINTENANCE_PERIOD, TimeUnit.SECONDS);
+    }
+
+    private Source getSource(long key) {
+        return sources.computeIfAbsent(key >>> 32, id -> new Source(new File(dir, id + SUFFIX)));
+    }
+
+    // feed the best stored level to the cache, returns that level or -1
+    int load(long key, JPIPCache cache, int frame) throws KduException {
+        int[] level = new int[1];
+        ArrayDeque<MappedByteBuffer> chain;
+        try {
+            chain = getSource(key).map(key, level);
+        } catch (IOException e) {
+            Log.warn("JPIPSegmentStore.load", e);
+            return -1;
+        }
+        if (chain == null)
+            return -1;
+        try {
+            for (MappedByteBuffer buf : chain)
+                JPIPStreamSerializer.read(buf, cache, frame);
+        } catch (RuntimeException e) { // corrupt record, fetch from the server
+            Log.warn("JPIPSegmentStore.load", e);
+            return -1;
+        }
+        return level[0];
+    }
+
+    void put(long key, int level, JPIPStream stream) {
+        try {
+            getSource(key).append(key, level, stream);
+        } catch (IOException | RuntimeException e) {
+            Log.warn("JPIPSegmentStore.put", e);
+        }
+    }
+
+    // a source with its last access as of the start of a maintenance pass, which readers keep updating
+    private static class Access {
+
+        final long sourceId;
+        final Source source;
+        final long lastAccess;
+
+        Access(long _sourceId, Source _source) {
+            sourceId = _sourceId;
+            source = _source;
+            lastAccess = source.lastAccess;
+        }
+
+    }
+
+    private void maintain() {
+        try { // an exception would cancel the scheduled maintenance
+            long now = System.currentTimeMillis();
+            try {
+                for (Source source : sources.values()) {
+                    source.compact();
+                }
+            } catch (Exception e) {
+                Log.warn("JPIPSegmentStore compaction", e);
+            }
+
+            long undeletedSize = 0;
+            for (Iterator<Source> it = undeleted.iterator(); it.hasNext(); ) {
+                Source source = it.next();
+                if (sources.values().stream().anyMatch(live -> live.file.equals(source.file)))
+                    it.remove(); // opened again, its bytes are counted for the new source
+                else if (source.delete())
+                    it.remove();
+                else
+                    undeletedSize += source.getSize();
+            }
+
+            ArrayList<Access> lru = new ArrayList<>();
+            sources.forEach((sourceId, source) -> lru.add(new Access(sourceId, source)));
+            lru.sort(Comparator.comparingLong(a -> a.lastAccess));
+            for (Access a : lru) {
+                // evicting more cannot free what is waiting to be deleted
+                if (totalSize.get() - undeletedSize <= budget && now - a.lastAccess < EXPIRY)
+                    break;
+                sources.remove(a.sourceId, a.source);
+                if (!a.source.delete()) {
+                    undeleted.add(a.source);
+                    undeletedSize += a.source.getSize();
+                }
+                Log.debug("JPIPSegmentStore evicted " + a.source.file);
+            }
+        } catch (Throwable t) {
+            Log.error("JPIPSegmentStore maintenance", t);
+        }
+    }
+
+    void close() {
+        maintenance.cancel(false);
+        sources.values().forEach(Source::close);
+    }
+
+    private static MappedByteBuffer mapRecord(FileChannel channel, Record record) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, record.position, record.length);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0)
+                break;
+            pos += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.helioviewer.jhv.view.j2k.io.jpip;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.helioviewer.jhv.log.Log;
+
+// The single thread doing the i/o of all JPIPAsyncChannels
+class JPIPSelector implements Runnable {
+
+    private static JPIPSelector instance;
+
+    static synchronized JPIPSelector get() throws IOException {
+        if (instance == null) {
+            instance = new JPIPSelector();
+            Thread thread = new Thread(instance, "JPIP Selector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return instance;
+    }
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private JPIPSelector() throws IOException {
+        selector = Selector.open();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    // run on the selector thread, the only one touching the channels
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid())
+                        ((JPIPAsyncChannel) key.attachment()).handle(key);
+                }
+            } catch (Throwable t) { // keep serving the other channels
+                Log.error("JPIPSelector", t);
+            }
+        }
+    }
+
+}
@@ -3,10 +3,13 @@ package org.helioviewer.jhv.view.j2k.io.jpip;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.zip.InflaterInputStream;
 import java.util.zip.GZIPInputStream;
 
+import javax.annotation.Nullable;
+
 import kdu_jni.KduException;
 
 import org.helioviewer.jhv.JHVGlobals;
@@ -14,15 +17,30 @@ import org.helioviewer.jhv.base.Regex;
 import org.helioviewer.jhv.view.j2k.io.ChunkedInputStream;
 import org.helioviewer.jhv.view.j2k.io.FixedSizedInputStream;
 import org.helioviewer.jhv.view.j2k.io.TransferInputStream;
+import org.helioviewer.jhv.view.j2k.io.http.HTTPConnectionPool;
 import org.helioviewer.jhv.view.j2k.io.http.HTTPMessage;
 import org.helioviewer.jhv.view.j2k.io.http.HTTPSocket;
 
-// Assumes a persistent HTTP connection
-public class JPIPSocket extends HTTPSocket {
+// A JPIP channel over connections leased from the pool; the connection is
+// held from the first request until release() with no response pending
+public class JPIPSocket {
 
     // The jpip channel ID for the connection (persistent)
     private final String jpipChannelID;
 
+    private final URI uri;
+    private volatile HTTPSocket conn;
+    private boolean closed;
+    // requests sent whose responses were not yet received
+    private int pending;
+    // the connection is in an unknown state after an error
+    private boolean broken;
+    // the connection was closed by abort(), its errors are not the host's
+    private volatile boolean aborted;
+    // send times of the requests whose responses were not yet received
+    private final ArrayDeque<Long> sendTimes = new ArrayDeque<>();
+    private final JPIPMetrics metrics;
+
     // private int totalLength = 0;
 
     /**
@@ -32,48 +50,157 @@ public class JPIPSocket extends HTTPSocket {
      */
     private String jpipPath;
 
+    private final JPIPParser parser = new JPIPParser();
+
     private static final String[] cnewParams = {"cid", "transport", "host", "path", "port", "auxport"};
 
-    public JPIPSocket(URI uri, JPIPCache cache) throws KduException, IOException {
-        super(uri);
+    public JPIPSocket(URI _uri, JPIPCache cache, boolean reconnect) throws KduException, IOException {
+        this(_uri, cache, HTTPConnectionPool.lease(_uri, reconnect));
+    }
 
-        jpipPath = uri.getPath();
+    // A new channel if the host has a connection to spare within timeout ms, else null
+    @Nullable
+    public static JPIPSocket open(URI uri, JPIPCache cache, boolean reconnect, long timeout) throws KduException, IOException {
+        HTTPSocket conn = HTTPConnectionPool.lease(uri, reconnect, timeout);
+        return conn == null ? null : new JPIPSocket(uri, cache, conn);
+    }
 
-        JPIPResponse res = send(JPIPQuery.create(512, "cnew", "http", "type", "jpp-stream", "tid", "0"), cache, 0); // deliberately short
-        String cnew = res.getCNew();
-        if (cnew == null)
-            throw new IOException("The header 'JPIP-cnew' was not sent by the server");
+    private JPIPSocket(URI _uri, JPIPCache cache, HTTPSocket _conn) throws KduException, IOException {
+        uri = _uri;
+        jpipPath = uri.getPath();
+        metrics = JPIPMetrics.get(uri);
+        conn = _conn;
 
         HashMap<String, String> map = new HashMap<>();
-        for (String part : Regex.Comma.split(cnew))
-            for (String cnewParam : cnewParams)
-                if (part.startsWith(cnewParam + '='))
-                    map.put(cnewParam, part.substring(cnewParam.length() + 1));
+        try {
+            JPIPResponse res = send(JPIPQuery.create(512, "cnew", "http", "type", "jpp-stream", "tid", "0"), cache, 0); // deliberately short
+            String cnew = res.getCNew();
+            if (cnew == null)
+                throw new IOException("The header 'JPIP-cnew' was not sent by the server");
+
+            for (String part : Regex.Comma.split(cnew))
+                for (String cnewParam : cnewParams)
+                    if (part.startsWith(cnewParam + '='))
+                        map.put(cnewParam, part.substring(cnewParam.length() + 1));
+
+            if (map.get("cid") == null)
+                throw new IOException("The channel id was not sent by the server");
+            if (!"http".equals(map.get("transport")))
+                throw new IOException("The client only supports HTTP transport");
+        } catch (KduException | IOException e) {
+            closed = broken = true;
+            release();
+            throw e;
+        }
 
         jpipPath = '/' + map.get("path");
         jpipChannelID = map.get("cid");
-        if (jpipChannelID == null)
-            throw new IOException("The channel id was not sent by the server");
+    }
 
-        if (!"http".equals(map.get("transport")))
-            throw new IOException("The client only supports HTTP transport");
+    public boolean isClosed() {
+        return closed;
     }
 
-    // Closes the JPIPSocket
-    @Override
-    public void close() throws IOException {
-        if (isClosed())
-            return;
+    // Leases the connection for the next requests unless held, returns false if
+    // the host has none to spare within timeout ms
+    public boolean tryConnect(long timeout) throws IOException {
+        if (closed)
+            throw new IOException("JPIP channel closed");
+        if (conn == null)
+            conn = HTTPConnectionPool.lease(uri, false, timeout);
+        return conn != null;
+    }
+
+    // A non-blocking transport for this channel, with its own connection
+    public JPIPAsyncChannel openAsync(JPIPCache cache) throws IOException {
+        if (closed)
+            throw new IOException("JPIP channel closed");
+        int port = uri.getPort();
+        return new JPIPAsyncChannel(uri.getHost(), port <= 0 ? 80 : port, jpipPath, jpipChannelID, cache, metrics);
+    }
+
+    // Gives back the connection between bursts of requests, the channel stays open
+    public void release() {
+        if (conn != null) {
+            if (broken || pending > 0) {
+                HTTPConnectionPool.discard(conn, broken && !aborted);
+                sendTimes.clear();
+            } else
+                HTTPConnectionPool.release(conn);
+            conn = null;
+            aborted = false;
+        }
+    }
 
+    // Closes the connection from another thread to unblock i/o, the owner closes the channel afterwards
+    public void abort() {
+        HTTPSocket c = conn;
+        if (c != null) {
+            aborted = true;
+            try {
+                c.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    // Closes the JPIPSocket, the connection goes back to the pool if in a known state
+    public void close() {
+        if (closed) {
+            release();
+            return;
+        }
         // System.out.println(">>> total MB: " + (totalLength / (double) (1024 * 1024)));
         try {
-            if (jpipChannelID != null)
+            if (!broken && pending == 0) {
                 send(JPIPQuery.create(0, "cclose", jpipChannelID));
-        } catch (IOException ignore) {
-            // no problem, server may have closed the socket
+                drain(connection().recv());
+            }
+        } catch (IOException e) {
+            broken = true; // no problem, server may have closed the socket
         } finally {
-            super.close();
+            closed = true;
+            sendTimes.clear();
+            release();
+        }
+    }
+
+    private HTTPSocket connection() throws IOException {
+        if (closed)
+            throw new IOException("JPIP channel closed");
+        if (conn == null)
+            conn = HTTPConnectionPool.lease(uri, false);
+        return conn;
+    }
+
+    private TransferInputStream openBody(HTTPMessage res) throws IOException {
+        InputStream inputStream = conn.getInputStream();
+        String head = res.getHeader("Transfer-Encoding");
+        String transferEncoding = head == null ? "" : head.toLowerCase();
+        switch (transferEncoding) {
+            case "":
+            case "identity":
+                String contentLength = res.getHeader("Content-Length");
+                try {
+                    return new FixedSizedInputStream(inputStream, Integer.parseInt(contentLength));
+                } catch (Exception e) {
+                    throw new IOException("Invalid Content-Length header: " + contentLength);
+                }
+            case "chunked":
+                return new ChunkedInputStream(inputStream);
+            default:
+                throw new IOException("Unsupported transfer encoding: " + transferEncoding);
+        }
+    }
+
+    // skip a response body so that the connection can be reused
+    private void drain(HTTPMessage res) throws IOException {
+        try (TransferInputStream in = openBody(res)) {
+            byte[] buf = new byte[1024];
+            while (in.read(buf) >= 0) ;
         }
+        if ("close".equals(res.getHeader("Connection")))
+            broken = true;
     }
 
     private void send(String queryStr) throws IOException {
@@ -87,39 +214,53 @@ public class JPIPSocket extends HTTPSocket {
         req.setHeader("Connection", "keep-alive");
         req.setHeader("Accept-Encoding", "gzip");
         req.setHeader("Cache-Control", "no-cache");
-        req.setHeader("Host", usedHost + ':' + usedPort);
+        HTTPSocket c = connection();
+        req.setHeader("Host", c.getHostKey());
         queryStr = "GET " + jpipPath + '?' + queryStr + " HTTP/1.1\r\n" + req + "\r\n";
-        write(queryStr);
+        try {
+            c.write(queryStr);
+            sendTimes.add(System.nanoTime());
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        }
     }
 
     public JPIPResponse send(String queryStr, JPIPCache cache, int frame) throws KduException, IOException {
         send(queryStr);
-        HTTPMessage res = recv();
-        if (!"image/jpp-stream".equals(res.getHeader("Content-Type")))
-            throw new IOException("Expected image/jpp-stream content");
+        return receive(cache, frame);
+    }
 
-        TransferInputStream transferInput;
-        String head = res.getHeader("Transfer-Encoding");
-        String transferEncoding = head == null ? "" : head.toLowerCase();
-        switch (transferEncoding) {
-            case "":
-            case "identity":
-                String contentLength = res.getHeader("Content-Length");
-                try {
-                    transferInput = new FixedSizedInputStream(inputStream, Integer.parseInt(contentLength));
-                } catch (Exception e) {
-                    throw new IOException("Invalid Content-Length header: " + contentLength);
-                }
-                break;
-            case "chunked":
-                transferInput = new ChunkedInputStream(inputStream);
-                break;
-            default:
-                throw new IOException("Unsupported transfer encoding: " + transferEncoding);
+    // Sends a request without waiting for its response; responses have to be
+    // received in the order of the requests. The server is asked to complete
+    // each response instead of pre-empting it with the next request.
+    public void request(String queryStr) throws IOException {
+        send(queryStr + "&wait=yes");
+        pending++;
+    }
+
+    public JPIPResponse receive(JPIPCache cache, int frame) throws KduException, IOException {
+        try {
+            JPIPResponse res = receiveResponse(cache, frame);
+            if (pending > 0)
+                pending--;
+            return res;
+        } catch (KduException | IOException | RuntimeException e) {
+            broken = true;
+            throw e;
         }
+    }
+
+    private JPIPResponse receiveResponse(JPIPCache cache, int frame) throws KduException, IOException {
+        HTTPMessage res = connection().recv();
+        Long sendTime = sendTimes.poll();
+        long roundTrip = sendTime == null ? 0 : System.nanoTime() - sendTime;
+        if (!"image/jpp-stream".equals(res.getHeader("Content-Type")))
+            throw new IOException("Expected image/jpp-stream content");
 
+        TransferInputStream transferInput = openBody(res);
         InputStream input = transferInput;
-        head = res.getHeader("Content-Encoding");
+        String head = res.getHeader("Content-Encoding");
         String contentEncoding = head == null ? "" : head.toLowerCase();
         switch (contentEncoding) {
             case "":
@@ -137,12 +278,16 @@ public class JPIPSocket extends HTTPSocket {
 
         JPIPResponse jpipRes = new JPIPResponse(res.getHeader("JPIP-cnew"));
         try (InputStream in = input) {
-            jpipRes.readSegments(in, cache, frame);
+            parser.readSegments(in, jpipRes, cache, frame);
         }
         // totalLength += transferInput.getTotalLength();
+        if (sendTime != null)
+            metrics.response(roundTrip, System.nanoTime() - sendTime, transferInput.getTotalLength());
 
-        if ("close".equals(res.getHeader("Connection"))) {
-            super.close();
+        if ("close".equals(res.getHeader("Connection"))) { // the channel goes with the connection
+            closed = true;
+            HTTPConnectionPool.discard(conn, false);
+            conn = null;
         }
 
         return jpipRes;
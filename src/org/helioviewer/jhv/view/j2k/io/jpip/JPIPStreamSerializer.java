@@ -0,0 +1,150 @@
+package org.helioviewer.jhv.view.j2k.io.jpip;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import kdu_jni.KduException;
+
+import org.ehcache.spi.serialization.Serializer;
+import org.ehcache.spi.serialization.SerializerException;
+
+/*
+ * Compact codec for persisted streams: a version, the segment count, the varint
+ * segment headers (class, bin, length, final flag) and then the segment data
+ * concatenated in one arena. Segments extracted from the cache always start at
+ * data-bin offset 0, so offsets are not stored.
+ */
+public class JPIPStreamSerializer implements Serializer<JPIPStream> {
+
+    private static final int VERSION = 1;
+
+    public JPIPStreamSerializer(ClassLoader loader) { // required by Ehcache
+    }
+
+    private static int sizeVarint(long v) {
+        int n = 1;
+        while ((v >>>= 7) != 0)
+            n++;
+        return n;
+    }
+
+    private static void putVarint(ByteBuffer buf, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    static long getVarint(ByteBuffer buf) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new SerializerException("Malformed varint");
+    }
+
+    @Override
+    public ByteBuffer serialize(JPIPStream stream) {
+        int size = sizeVarint(VERSION) + sizeVarint(stream.segments.size());
+        for (JPIPSegment seg : stream.segments) {
+            size += sizeVarint(seg.klassID) + sizeVarint(seg.binID) + sizeVarint(seg.length) + 1 + seg.length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        putVarint(buf, VERSION);
+        putVarint(buf, stream.segments.size());
+        for (JPIPSegment seg : stream.segments) {
+            putVarint(buf, seg.klassID);
+            putVarint(buf, seg.binID);
+            putVarint(buf, seg.length);
+            buf.put((byte) (seg.isFinal ? 1 : 0));
+        }
+        for (JPIPSegment seg : stream.segments) {
+            if (seg.length > 0)
+                buf.put(seg.data, 0, seg.length);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    public JPIPStream read(ByteBuffer buf) {
+        try {
+            if (getVarint(buf) != VERSION)
+                throw new SerializerException("Unknown JPIPStream version");
+
+            int num = (int) getVarint(buf);
+            JPIPStream stream = new JPIPStream();
+            stream.segments.ensureCapacity(num);
+            for (int i = 0; i < num; i++) {
+                JPIPSegment seg = new JPIPSegment();
+                seg.klassID = (int) getVarint(buf);
+                seg.binID = getVarint(buf);
+                seg.length = (int) getVarint(buf);
+                seg.isFinal = buf.get() != 0;
+                stream.segments.add(seg);
+            }
+            for (JPIPSegment seg : stream.segments) {
+                seg.data = new byte[seg.length];
+                buf.get(seg.data);
+            }
+            return stream;
+        } catch (RuntimeException e) {
+            throw e instanceof SerializerException ? e : new SerializerException(e);
+        }
+    }
+
+    static long binKey(int klassID, long binID) {
+        return binID << 3 | klassID;
+    }
+
+    // collect the bins of an encoded stream from its headers, final bins as Integer.MAX_VALUE
+    static void readBins(ByteBuffer buf, Map<Long, Integer> bins) {
+        if (getVarint(buf) != VERSION)
+            throw new SerializerException("Unknown JPIPStream version");
+
+        int num = (int) getVarint(buf);
+        for (int i = 0; i < num; i++) {
+            int klassID = (int) getVarint(buf);
+            long binID = getVarint(buf);
+            int length = (int) getVarint(buf);
+            bins.merge(binKey(klassID, binID), buf.get() != 0 ? Integer.MAX_VALUE : length, Math::max);
+        }
+    }
+
+    // feed an encoded stream to the cache, copying each segment once through a scratch array
+    static void read(ByteBuffer buf, JPIPCache cache, int frame) throws KduException {
+        if (getVarint(buf) != VERSION)
+            throw new SerializerException("Unknown JPIPStream version");
+
+        int num = (int) getVarint(buf);
+        int[] klassIDs = new int[num];
+        long[] binIDs = new long[num];
+        int[] lengths = new int[num];
+        boolean[] finals = new boolean[num];
+        int maxLength = 0;
+        for (int i = 0; i < num; i++) {
+            klassIDs[i] = (int) getVarint(buf);
+            binIDs[i] = getVarint(buf);
+            lengths[i] = (int) getVarint(buf);
+            finals[i] = buf.get() != 0;
+            maxLength = Math.max(maxLength, lengths[i]);
+        }
+
+        byte[] data = new byte[maxLength];
+        for (int i = 0; i < num; i++) {
+            buf.get(data, 0, lengths[i]);
+            cache.put(frame, klassIDs[i], binIDs[i], data, 0, lengths[i], finals[i]);
+        }
+    }
+
+    @Override
+    public boolean equals(JPIPStream stream, ByteBuffer buf) {
+        return serialize(stream).equals(buf.duplicate());
+    }
+
+}
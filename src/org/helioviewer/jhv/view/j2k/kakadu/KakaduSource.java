@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 
 import javax.annotation.Nullable;
 
@@ -24,10 +25,11 @@ import kdu_jni.Kdu_dims;
 import kdu_jni.Kdu_global;
 
 import org.helioviewer.jhv.math.MathUtils;
-import org.helioviewer.jhv.metadata.MetaData;
-import org.helioviewer.jhv.metadata.XMLMetaDataContainer;
 import org.helioviewer.jhv.view.j2k.image.ResolutionSet;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 public class KakaduSource {
 
     private final Jp2_threadsafe_family_src familySrc = new Jp2_threadsafe_family_src(); // reference has to be maintained
@@ -78,7 +80,7 @@ public class KakaduSource {
         cmap.Native_destroy();
 
         int maxDWT = stream.Get_min_dwt_levels();
-        ResolutionSet res = new ResolutionSet(maxDWT + 1, maxComponents);
+        ResolutionSet res = new ResolutionSet(maxDWT + 1, maxComponents, stream.Get_max_tile_layers());
 
         Kdu_dims dims = new Kdu_dims();
         stream.Get_dims(0, dims);
@@ -129,39 +131,52 @@ public class KakaduSource {
     }
 
     private static final long[] xmlFilter = {Kdu_global.jp2_xml_4cc};
+    // bound of the cached XML, in characters
+    private static final long XML_CACHE_SIZE = 4 * 1024 * 1024;
+
+    // XML metanodes by frame, from the last walk of the metadata
+    private final ArrayList<Jpx_metanode> xmlNodes = new ArrayList<>();
+    private final Cache<Integer, String> xmlCache = CacheBuilder.newBuilder()
+            .maximumWeight(XML_CACHE_SIZE).weigher((Integer frame, String xml) -> xml.length()).build();
+    private final Jp2_input_box xmlBox = new Jp2_input_box();
 
-    public void extractMetaData(MetaData[] metaDataList) throws Exception {
+    private void indexXMLNodes() throws KduException {
+        xmlNodes.clear();
         Jpx_meta_manager metaManager = jpxSrc.Access_meta_manager();
         Jpx_metanode node = new Jpx_metanode();
-        int i = 0;
-
-        Jp2_input_box xmlBox = new Jp2_input_box();
-        while ((node = metaManager.Peek_and_clear_touched_nodes(1, xmlFilter, node)).Exists()) {
-            if (i == metaDataList.length)
-                return;
-            if (node.Open_existing(xmlBox)) {
-                metaDataList[i] = new XMLMetaDataContainer(xmlBox2String(xmlBox)).getHVMetaData(i, true);
-                xmlBox.Close();
-            }
-            i++;
-        }
+        while ((node = metaManager.Peek_and_clear_touched_nodes(1, xmlFilter, node)).Exists())
+            xmlNodes.add(node);
     }
 
-    public String extractXMLString(int frame) throws KduException {
-        Jpx_meta_manager metaManager = jpxSrc.Access_meta_manager();
-        Jpx_metanode node = new Jpx_metanode();
-        int i = 0;
-
-        Jp2_input_box xmlBox = new Jp2_input_box();
-        while ((node = metaManager.Peek_and_clear_touched_nodes(1, xmlFilter, node)).Exists()) {
-            if (i == frame && node.Open_existing(xmlBox)) {
-                String meta = xmlBox2String(xmlBox);
-                xmlBox.Close();
-                return meta;
-            }
-            i++;
-        }
-        return "<meta/>";
+    @Nullable
+    private String readXMLNode(int frame) throws KduException {
+        if (!xmlNodes.get(frame).Open_existing(xmlBox))
+            return null;
+        String xml = xmlBox2String(xmlBox);
+        xmlBox.Close();
+        return xml;
+    }
+
+    // XML boxes of all frames in one walk of the metadata, null where missing
+    public synchronized String[] extractXMLStrings(int numFrames) throws KduException {
+        String[] xml = new String[numFrames];
+        indexXMLNodes();
+        for (int i = 0; i < Math.min(numFrames, xmlNodes.size()); i++)
+            xml[i] = readXMLNode(i);
+        return xml;
+    }
+
+    public synchronized String extractXMLString(int frame) throws KduException {
+        String xml = xmlCache.getIfPresent(frame);
+        if (xml != null)
+            return xml;
+
+        if (frame >= xmlNodes.size()) // metadata may have arrived since the last walk
+            indexXMLNodes();
+        if (frame >= xmlNodes.size() || (xml = readXMLNode(frame)) == null)
+            return "<meta/>";
+        xmlCache.put(frame, xml);
+        return xml;
     }
 
     private static String xmlBox2String(Jp2_input_box xmlBox) throws KduException {